@@ -0,0 +1,94 @@
+// Copyright 2023 Canva Inc. All Rights Reserved.
+
+package com.canva.pomgen;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Compares JsonTargetInfoReader with the ObjectMapper record binding it replaced, reading
+ * the same *-maven-info.json files from disk on one thread with each in turn.
+ * <p>
+ * Takes the .json files or directories to search for them as arguments, for example
+ * bazel-bin after running the tool. ObjectMapper doesn't know the compact format, so the
+ * files have to be written with CANVA_POMGEN_READABLE_ASPECT_OUTPUT=true.
+ * <pre>
+ * bazel run //:json-target-info-reader-benchmark -- "$(bazel info bazel-bin)"
+ * </pre>
+ */
+@SuppressWarnings("Convert2MethodRef")
+public final class JsonTargetInfoReaderBenchmark {
+
+  private static final int WARMUP_ROUNDS = 5;
+  private static final int ROUNDS = 10;
+
+  private interface Decoder {
+    JsonTargetInfo read(Path path) throws IOException;
+  }
+
+  public static void main(String[] args) throws IOException {
+    var files = new ArrayList<Path>();
+    for (var arg : args) {
+      try (var paths = Files.walk(Path.of(arg))) {
+        paths
+          .filter(x -> x.getFileName().toString().endsWith("-maven-info.json"))
+          .forEach(x -> files.add(x));
+      }
+    }
+    if (files.isEmpty()) {
+      System.err.println("No *-maven-info.json files found");
+      System.exit(1);
+    }
+    System.err.printf("%d files%n", files.size());
+
+    Decoder databind = x -> Main.mapper.readValue(x.toFile(), JsonTargetInfo.class);
+    Decoder reader = x -> JsonTargetInfoReader.read(x);
+
+    // Both have to agree before their speed means anything
+    for (var file : files) {
+      if (!databind.read(file).equals(reader.read(file))) {
+        throw new IllegalStateException("Decoders disagree on " + file);
+      }
+    }
+
+    for (var i = 0; i < WARMUP_ROUNDS; i++) {
+      run(databind, files);
+      run(reader, files);
+    }
+    report("ObjectMapper", databind, files);
+    report("JsonTargetInfoReader", reader, files);
+  }
+
+  private static void report(String name, Decoder decoder, List<Path> files)
+    throws IOException {
+    var threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+    var thread = Thread.currentThread().threadId();
+    var bestNanos = Long.MAX_VALUE;
+    var allocated = 0L;
+    for (var i = 0; i < ROUNDS; i++) {
+      var startBytes = threads.getThreadAllocatedBytes(thread);
+      var start = System.nanoTime();
+      run(decoder, files);
+      bestNanos = Math.min(bestNanos, System.nanoTime() - start);
+      allocated += threads.getThreadAllocatedBytes(thread) - startBytes;
+    }
+    System.out.printf(
+      "%-22s %8.2f us/file %10d bytes allocated/file%n",
+      name,
+      bestNanos / 1000.0 / files.size(),
+      allocated / ROUNDS / files.size()
+    );
+  }
+
+  private static void run(Decoder decoder, List<Path> files) throws IOException {
+    for (var file : files) {
+      decoder.read(file);
+    }
+  }
+
+  private JsonTargetInfoReaderBenchmark() {}
+}
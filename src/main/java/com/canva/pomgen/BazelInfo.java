@@ -1,5 +1,19 @@
 package com.canva.pomgen;
 
+import static com.canva.pomgen.JsonTargetInfo.warning;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.HexFormat;
+import java.util.List;
 import java.util.Map;
 
 public record BazelInfo(
@@ -56,4 +70,162 @@ public record BazelInfo(
       info.get("workspace")
     );
   }
+
+  /**
+   * The keys we actually need. Asking for just these is cheaper than a full "bazel info".
+   */
+  public static final List<String> KEYS = List.of(
+    "bazel-bin",
+    "execution_root",
+    "output_base",
+    "server_pid",
+    "workspace"
+  );
+
+  public Map<String, String> toMap() {
+    var map = new HashMap<String, String>();
+    map.put("bazel-bin", bazelBin);
+    map.put("execution_root", executionRoot);
+    map.put("output_base", outputBase);
+    map.put("server_pid", serverPid);
+    map.put("workspace", workspace);
+    return map;
+  }
+
+  /**
+   * When we are run by "bazel run", work out what we need from BUILD_WORKSPACE_DIRECTORY and
+   * the convenience symlinks in it, which were just updated by the build of this tool.
+   * Returns null if they aren't there or don't look right.
+   */
+  public static BazelInfo fromEnvironment() {
+    var workspace = System.getenv("BUILD_WORKSPACE_DIRECTORY");
+    if (workspace == null) {
+      return null;
+    }
+    try {
+      var workspaceDir = Path.of(workspace);
+      var bazelBin = workspaceDir.resolve("bazel-bin").toRealPath();
+      var bazelOut = workspaceDir.resolve("bazel-out").toRealPath();
+      // bazel-out is <output_base>/execroot/<workspace name>/bazel-out
+      var executionRoot = bazelOut.getParent();
+      var execRootParent = executionRoot.getParent();
+      if (
+        !bazelBin.startsWith(bazelOut) ||
+        execRootParent == null ||
+        !execRootParent.getFileName().toString().equals("execroot")
+      ) {
+        return null;
+      }
+      var map = new HashMap<String, String>();
+      map.put("bazel-bin", bazelBin.toString());
+      map.put("execution_root", executionRoot.toString());
+      map.put("output_base", execRootParent.getParent().toString());
+      map.put("workspace", workspaceDir.toString());
+      return new BazelInfo(map);
+    } catch (IOException e) {
+      return null;
+    }
+  }
+
+  /**
+   * The workspace containing the current directory, found the same way Bazel does.
+   */
+  public static Path findWorkspace(Path dir) {
+    for (var d = dir.toAbsolutePath(); d != null; d = d.getParent()) {
+      for (var marker : List.of(
+        "MODULE.bazel",
+        "REPO.bazel",
+        "WORKSPACE.bazel",
+        "WORKSPACE"
+      )) {
+        if (Files.isRegularFile(d.resolve(marker))) {
+          return d;
+        }
+      }
+    }
+    return null;
+  }
+
+  private static Path getCacheFile(Path workspace) {
+    var cacheHome = System.getenv("XDG_CACHE_HOME");
+    var cacheDir = cacheHome != null
+      ? Path.of(cacheHome)
+      : Path.of(System.getProperty("user.home"), ".cache");
+    return cacheDir
+      .resolve("bazel-to-maven-build")
+      .resolve("bazel-info-" + sha256(workspace.toString()) + ".json");
+  }
+
+  /**
+   * The "bazel info" cached for the given workspace, if the Bazel server that produced it is
+   * still the one running.
+   */
+  public static BazelInfo readCached(Path workspace) {
+    try {
+      @SuppressWarnings("unchecked")
+      Map<String, String> map = Main.mapper.readValue(
+        getCacheFile(workspace).toFile(),
+        Map.class
+      );
+      var cached = new BazelInfo(map);
+      if (
+        cached.serverPid() == null ||
+        cached.outputBase() == null ||
+        !workspace.toString().equals(cached.workspace())
+      ) {
+        return null;
+      }
+      var pidFile = Path
+        .of(cached.outputBase())
+        .resolve("server")
+        .resolve("server.pid.txt");
+      var pid = Files.readString(pidFile).trim();
+      if (
+        pid.equals(cached.serverPid()) &&
+        ProcessHandle.of(Long.parseLong(pid)).isPresent()
+      ) {
+        return cached;
+      }
+    } catch (NoSuchFileException | FileNotFoundException e) {
+      // Nothing cached, or the server isn't running
+    } catch (IOException | NumberFormatException e) {
+      warning("Ignoring cached bazel info (%s)".formatted(e));
+    }
+    return null;
+  }
+
+  public void writeCache() {
+    try {
+      var file = getCacheFile(Path.of(workspace));
+      Files.createDirectories(file.getParent());
+      var temp = Files.createTempFile(file.getParent(), "bazel-info-", ".tmp");
+      try {
+        Main.mapper.writeValue(temp.toFile(), toMap());
+        Files.move(
+          temp,
+          file,
+          StandardCopyOption.REPLACE_EXISTING,
+          StandardCopyOption.ATOMIC_MOVE
+        );
+      } finally {
+        Files.deleteIfExists(temp);
+      }
+    } catch (IOException e) {
+      warning("Failed to cache bazel info (%s)".formatted(e));
+    }
+  }
+
+  private static String sha256(String string) {
+    try {
+      return HexFormat
+        .of()
+        .formatHex(
+          MessageDigest
+            .getInstance("SHA-256")
+            .digest(string.getBytes(StandardCharsets.UTF_8))
+        );
+    } catch (NoSuchAlgorithmException e) {
+      throw new RuntimeException(e);
+    }
+  }
 }
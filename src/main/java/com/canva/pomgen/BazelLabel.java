@@ -34,7 +34,7 @@ public record BazelLabel(
   }
 
   public Path toMavenPomFilePath() {
-    return realBazelBinPath.resolve(toPath() + "-maven-info.json");
+    return realBazelBinPath().resolve(toPath() + "-maven-info.json");
   }
 
   public String toPath() {
@@ -0,0 +1,165 @@
+// Copyright 2023 Canva Inc. All Rights Reserved.
+
+package com.canva.pomgen;
+
+import static com.canva.pomgen.Main.bazelExecRoot;
+
+import com.fasterxml.jackson.databind.JsonNode;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Follows the newline delimited JSON written by "bazel build --build_event_json_file" while
+ * the build is running, and reports the .json file of each target as soon as our aspect
+ * completes on it.
+ * <p>
+ * See <a href="https://bazel.build/remote/bep">the Build Event Protocol</a>.
+ */
+final class BuildEvents {
+
+  interface Listener {
+    /**
+     * Our aspect completed on a top-level target that provides the "pom_info" output group,
+     * and this is the .json file it wrote for that target.
+     */
+    void aspectCompleted(BazelLabel label, Path jsonPath);
+
+    /**
+     * Our aspect failed on a top-level target.
+     */
+    void aspectFailed(BazelLabel label);
+  }
+
+  private static final long POLL_INTERVAL_MILLIS = 20;
+
+  private final Listener listener;
+
+  /**
+   * namedSetOfFiles events by ID. These are always posted before any event that refers to
+   * them.
+   */
+  private final Map<String, JsonNode> namedSets = new HashMap<>();
+  private final ByteArrayOutputStream partialLine = new ByteArrayOutputStream();
+  private boolean lastMessage = false;
+
+  private BuildEvents(Listener listener) {
+    this.listener = listener;
+  }
+
+  /**
+   * Read events from the file as they are written, until the process exits.
+   */
+  public static void follow(Path file, Process process, Listener listener)
+    throws IOException, InterruptedException {
+    new BuildEvents(listener).follow(file, process);
+  }
+
+  private void follow(Path file, Process process)
+    throws IOException, InterruptedException {
+    var buffer = ByteBuffer.allocate(64 * 1024);
+    try (var channel = FileChannel.open(file)) {
+      while (!lastMessage) {
+        // Check this before reading so we can't miss anything written just before exiting
+        var exited = !process.isAlive();
+        var read = channel.read(buffer);
+        if (read > 0) {
+          buffer.flip();
+          consume(buffer);
+          buffer.clear();
+        } else if (exited) {
+          break;
+        } else {
+          Thread.sleep(POLL_INTERVAL_MILLIS);
+        }
+      }
+    }
+    if (!lastMessage && partialLine.size() > 0) {
+      handle(partialLine.toByteArray(), partialLine.size());
+    }
+  }
+
+  private void consume(ByteBuffer buffer) throws IOException {
+    while (buffer.hasRemaining()) {
+      var b = buffer.get();
+      if (b == '\n') {
+        handle(partialLine.toByteArray(), partialLine.size());
+        partialLine.reset();
+      } else {
+        partialLine.write(b);
+      }
+    }
+  }
+
+  private void handle(byte[] line, int length) throws IOException {
+    if (length == 0) {
+      return;
+    }
+    var event = Main.mapper.readTree(line, 0, length);
+    var id = event.path("id");
+    if (id.has("namedSet")) {
+      namedSets.put(
+        id.path("namedSet").path("id").asText(),
+        event.path("namedSetOfFiles")
+      );
+    } else if (id.path("targetCompleted").has("aspect")) {
+      handleAspectCompleted(id.path("targetCompleted"), event);
+    }
+    lastMessage = event.path("lastMessage").asBoolean(false);
+  }
+
+  private void handleAspectCompleted(JsonNode id, JsonNode event) {
+    var label = BazelLabel.parse(id.path("label").asText());
+    var completed = event.path("completed");
+    if (!completed.path("success").asBoolean(false)) {
+      listener.aspectFailed(label);
+      return;
+    }
+    for (var group : completed.path("outputGroup")) {
+      if (group.path("name").asText().equals("pom_info_file")) {
+        for (var path : getFiles(group.path("fileSets"))) {
+          listener.aspectCompleted(label, path);
+        }
+      }
+    }
+  }
+
+  private List<Path> getFiles(JsonNode fileSets) {
+    var result = new ArrayList<Path>();
+    var seen = new HashSet<String>();
+    var pending = new ArrayList<JsonNode>();
+    fileSets.forEach(pending::add);
+    while (!pending.isEmpty()) {
+      var setId = pending.remove(pending.size() - 1).path("id").asText();
+      var namedSet = namedSets.get(setId);
+      if (namedSet == null || !seen.add(setId)) {
+        continue;
+      }
+      for (var file : namedSet.path("files")) {
+        result.add(toPath(file));
+      }
+      namedSet.path("fileSets").forEach(pending::add);
+    }
+    return result;
+  }
+
+  /**
+   * The "pathPrefix" and "name" of a file together make up its path relative to the exec
+   * root, eg. "bazel-out/k8-fastbuild/bin" and "foo/bar-maven-info.json".
+   */
+  private static Path toPath(JsonNode file) {
+    var path = bazelExecRoot();
+    for (var part : file.path("pathPrefix")) {
+      path = path.resolve(part.asText());
+    }
+    return path.resolve(file.path("name").asText());
+  }
+}
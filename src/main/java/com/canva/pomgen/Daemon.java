@@ -0,0 +1,724 @@
+// Copyright 2023 Canva Inc. All Rights Reserved.
+
+package com.canva.pomgen;
+
+import static com.canva.pomgen.JsonTargetInfo.warning;
+import static com.canva.pomgen.Main.bazelOutputBase;
+import static com.canva.pomgen.Main.toAbsolutePath;
+import static com.canva.pomgen.Main.workspaceDir;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_CREATE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_DELETE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_MODIFY;
+import static java.nio.file.StandardWatchEventKinds.OVERFLOW;
+
+import com.canva.pomgen.Main.InvalidPathException;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.Channels;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+/**
+ * Keeps the parsed targets and Maps in memory after generating the pom.xml files, and keeps
+ * them up to date as the workspace changes.
+ * <p>
+ * The directories of the packages and source files of our targets are watched. When a BUILD
+ * file changes, or a file is added to or removed from a package, or a Java file's package
+ * line changes, we query and build the aspect for just the affected packages and the targets
+ * that depend on them, patch Maps with the result and only rewrite the pom.xml files of the
+ * modules that could have changed. New directories aren't watched until the next update, so
+ * use "refresh" for a brand new package.
+ * <p>
+ * The daemon can be controlled by sending a one line command to the Unix domain socket
+ * bazel-to-maven-build/daemon.sock in the output base, eg. with "nc -U":
+ * <ul>
+ *   <li>"status" describes what is loaded and watched.</li>
+ *   <li>"refresh //some/package ..." updates the given packages now.</li>
+ *   <li>"regenerate" reloads the whole workspace from scratch.</li>
+ *   <li>"stop" exits.</li>
+ * </ul>
+ */
+@SuppressWarnings("Convert2MethodRef")
+final class Daemon implements AutoCloseable {
+
+  /**
+   * How long to wait for more file changes before acting on them, since saving a file or
+   * switching branches makes many changes in quick succession.
+   */
+  private static final long DEBOUNCE_MILLIS = 200;
+
+  /**
+   * How often to check for commands while there are no file changes.
+   */
+  private static final long COMMAND_POLL_MILLIS = 100;
+
+  private static final List<String> BUILD_FILE_NAMES = List.of(
+    "BUILD.bazel",
+    "BUILD"
+  );
+
+  private record Command(String line, CompletableFuture<String> reply) {}
+
+  private final ParseCache cache = Main.loadParseCache();
+  private final WatchService watchService;
+  private final Map<WatchKey, Path> watchKeys = new HashMap<>();
+  private final Set<Path> watchedDirs = new HashSet<>();
+  private final BlockingQueue<Command> commands = new LinkedBlockingQueue<>();
+  private final Path socketPath = bazelOutputBase()
+    .resolve("bazel-to-maven-build")
+    .resolve("daemon.sock");
+  private ServerSocketChannel server;
+  private volatile boolean stopped = false;
+
+  // Everything we have loaded, by .json path
+  private final Map<Path, AbstractParsedTarget> targets = new HashMap<>();
+  private final Map<Path, JsonTargetInfo> jsonInfos = new HashMap<>();
+  private final Map<Path, BazelLabel> rootLabels = new HashMap<>();
+
+  /**
+   * The .json files that reference each .json file through otherInfos.
+   */
+  private final Map<Path, Set<Path>> reverseOtherInfos = new HashMap<>();
+
+  /**
+   * The package of every Java source file of our targets, and our other source files, so we
+   * can tell which changes matter.
+   */
+  private final Map<Path, String> javaPackages = new HashMap<>();
+  private final Set<Path> otherSources = new HashSet<>();
+
+  private Maps maps;
+  private Set<String> cycleImpactedModules;
+
+  /**
+   * Packages that changed but failed to update, to try again on the next change.
+   */
+  private final Set<String> pendingPackages = new TreeSet<>();
+
+  private Daemon() throws IOException {
+    watchService = FileSystems.getDefault().newWatchService();
+  }
+
+  public static void run() throws IOException, InterruptedException {
+    try (var daemon = new Daemon()) {
+      daemon.listen();
+      daemon.regenerate();
+      System.err.printf("Watching for changes, control with %s%n", daemon.socketPath);
+      daemon.loop();
+    }
+  }
+
+  /**
+   * Load the whole workspace from scratch and regenerate everything.
+   */
+  private void regenerate() throws IOException {
+    Main.javaPackageIndex.clear();
+    var generatedFiles = Main.loadGeneratedFiles();
+    var loaded = Main.loadTargets(
+      TargetPatterns.WHOLE_WORKSPACE,
+      null,
+      cache,
+      generatedFiles
+    );
+    cache.save(false);
+
+    targets.clear();
+    jsonInfos.clear();
+    rootLabels.clear();
+    reverseOtherInfos.clear();
+    javaPackages.clear();
+    otherSources.clear();
+    for (var target : loaded.targets()) {
+      add(target, loaded.jsonInfos().get(target.getJsonPath()));
+    }
+    rootLabels.putAll(loaded.rootLabels());
+
+    maps = new Maps(loaded.targets(), Map.of(), Main.loadMavenLockFiles());
+    cycleImpactedModules = Main.findCycleImpactedModules(maps);
+    Main.writePomXmlFiles(
+      maps,
+      cycleImpactedModules,
+      TargetPatterns.WHOLE_WORKSPACE,
+      generatedFiles
+    );
+    pendingPackages.clear();
+    watchDirectories();
+  }
+
+  /**
+   * Reload the targets in the given packages, and everything that depends on them, and
+   * rewrite the pom.xml files of the modules affected.
+   */
+  private void update(Set<String> packages) throws IOException {
+    System.err.printf("Updating %s%n", formatPackages(packages));
+
+    // The old targets to replace
+    var replaced = reverseClosure(
+      jsonInfos
+        .entrySet()
+        .stream()
+        .filter(x -> isInPackages(x.getValue(), packages))
+        .map(x -> x.getKey())
+        .toList()
+    );
+
+    // Query for what is in the packages now, which might be nothing if a BUILD file was
+    // deleted, and rebuild the aspect for those and everything that depends on them
+    var labels = new LinkedHashSet<BazelLabel>();
+    var existingPackages = packages
+      .stream()
+      .filter(x -> findBuildFile(workspaceDir().resolve(x)) != null)
+      .toList();
+    if (!existingPackages.isEmpty()) {
+      labels.addAll(
+        Main.runBazelQuery(TargetPatterns.ofPackages(existingPackages))
+      );
+    }
+    for (var path : replaced) {
+      var label = rootLabels.get(path);
+      if (label != null && !isInPackages(jsonInfos.get(path), packages)) {
+        labels.add(label);
+      }
+    }
+
+    List<AbstractParsedTarget> loaded;
+    Map<Path, JsonTargetInfo> loadedJsonInfos;
+    Map<Path, BazelLabel> loadedRootLabels;
+    try (var loader = new TargetLoader(cache)) {
+      if (!labels.isEmpty()) {
+        System.err.println("Running aspect...");
+        Main.runAspect(List.copyOf(labels), loader);
+      }
+      loaded = loader.load();
+      loadedJsonInfos = loader.getJsonInfos();
+      loadedRootLabels = loader.getRootLabels();
+    }
+
+    // Nothing has been changed yet, so if anything above failed we can just try again later
+
+    var removed = new ArrayList<AbstractParsedTarget>();
+    var added = new ArrayList<AbstractParsedTarget>();
+    var changed = new HashSet<Path>(replaced);
+    for (var target : loaded) {
+      var path = target.getJsonPath();
+      if (!replaced.contains(path) && target.equals(targets.get(path))) {
+        // A dependency that is the same as before
+        continue;
+      }
+      changed.add(path);
+    }
+    // Anything that depends on a target that changed without being in the packages (eg. an
+    // external jar) has to be replaced as well, even though it didn't change itself.
+    var unchangedDependents = reverseClosure(changed);
+    unchangedDependents.removeAll(changed);
+
+    for (var path : changed) {
+      var old = targets.get(path);
+      if (old != null) {
+        removed.add(old);
+        remove(path);
+      }
+    }
+    for (var target : loaded) {
+      var path = target.getJsonPath();
+      if (changed.contains(path)) {
+        add(target, loadedJsonInfos.get(path));
+        added.add(target);
+      }
+    }
+    for (var path : unchangedDependents) {
+      var target = targets.get(path);
+      if (target != null) {
+        removed.add(target);
+        added.add(target);
+      }
+    }
+    rootLabels.keySet().removeAll(replaced);
+    rootLabels.putAll(loadedRootLabels);
+
+    var changedModules = maps.update(removed, added);
+
+    var oldCycleImpactedModules = cycleImpactedModules;
+    cycleImpactedModules = Main.findCycleImpactedModules(maps);
+    for (var module : oldCycleImpactedModules) {
+      if (!cycleImpactedModules.contains(module)) {
+        changedModules.add(module);
+      }
+    }
+    for (var module : cycleImpactedModules) {
+      if (!oldCycleImpactedModules.contains(module)) {
+        changedModules.add(module);
+      }
+    }
+
+    Main.writePomXmlFiles(
+      maps,
+      cycleImpactedModules,
+      TargetPatterns.ofModules(changedModules),
+      Main.loadGeneratedFiles()
+    );
+    cache.save(true);
+    watchDirectories();
+    System.err.printf(
+      "Updated %d targets in %d modules%n",
+      changed.size(),
+      changedModules.size()
+    );
+  }
+
+  private void add(AbstractParsedTarget target, JsonTargetInfo json) {
+    var path = target.getJsonPath();
+    targets.put(path, target);
+    jsonInfos.put(path, json);
+    for (var other : json.otherInfos()) {
+      reverseOtherInfos
+        .computeIfAbsent(toAbsolutePath(other), x -> new HashSet<>())
+        .add(path);
+    }
+    if (target instanceof JavaCompile java) {
+      for (var src : java.srcs()) {
+        var file = getWorkspaceFile(src);
+        if (file != null) {
+          var directory = Path.of(src.filePath()).getParent();
+          javaPackages.put(
+            file,
+            directory == null ? "" : directory.toString().replace('/', '.')
+          );
+        }
+      }
+      for (var resource : java.resources()) {
+        var file = getWorkspaceFile(resource);
+        if (file != null) {
+          otherSources.add(file);
+        }
+      }
+    }
+  }
+
+  private void remove(Path path) {
+    var json = jsonInfos.remove(path);
+    targets.remove(path);
+    if (json != null) {
+      for (var other : json.otherInfos()) {
+        var dependents = reverseOtherInfos.get(toAbsolutePath(other));
+        if (dependents != null) {
+          dependents.remove(path);
+        }
+      }
+    }
+    // Source files are left in javaPackages and otherSources, at worst that causes an extra
+    // update later on.
+  }
+
+  /**
+   * The absolute path of the source file if it is in the workspace and not generated.
+   */
+  private static Path getWorkspaceFile(SourcePath path) {
+    var root = path.root();
+    if (!root.prefix().isEmpty()) {
+      return null;
+    }
+    return root.getSourceRootPathFromModuleRoot().resolve(path.filePath());
+  }
+
+  /**
+   * The given .json files and every .json file that reaches them through otherInfos.
+   */
+  private Set<Path> reverseClosure(Iterable<Path> paths) {
+    var result = new HashSet<Path>();
+    var stack = new ArrayDeque<Path>();
+    for (var path : paths) {
+      if (result.add(path)) {
+        stack.push(path);
+      }
+    }
+    while (!stack.isEmpty()) {
+      for (var dependent : reverseOtherInfos.getOrDefault(
+        stack.pop(),
+        Set.of()
+      )) {
+        if (result.add(dependent)) {
+          stack.push(dependent);
+        }
+      }
+    }
+    return result;
+  }
+
+  /**
+   * The package of a target in the main repository, or null.
+   */
+  private static String getPackage(JsonTargetInfo json) {
+    var label = BazelLabel.parse(json.label());
+    var workspaceName = label.workspaceName();
+    if (!workspaceName.isEmpty() && !workspaceName.equals("@")) {
+      return null;
+    }
+    return label.packageName();
+  }
+
+  private static boolean isInPackages(JsonTargetInfo json, Set<String> packages) {
+    var packageName = getPackage(json);
+    return packageName != null && packages.contains(packageName);
+  }
+
+  private static Path findBuildFile(Path directory) {
+    for (var name : BUILD_FILE_NAMES) {
+      var file = directory.resolve(name);
+      if (Files.isRegularFile(file)) {
+        return file;
+      }
+    }
+    return null;
+  }
+
+  /**
+   * The package that owns the files in the given directory, or null if there isn't one.
+   */
+  private static String findPackage(Path directory) {
+    var workspace = workspaceDir();
+    while (directory != null && directory.startsWith(workspace)) {
+      if (findBuildFile(directory) != null) {
+        return workspace.relativize(directory).toString();
+      }
+      directory = directory.getParent();
+    }
+    return null;
+  }
+
+  /**
+   * "//foo/bar" or "foo/bar/" to "foo/bar".
+   */
+  private static String parsePackage(String arg) {
+    var result = Main.removePrefix(arg, "//").orElse(arg);
+    while (result.endsWith("/")) {
+      result = result.substring(0, result.length() - 1);
+    }
+    return result;
+  }
+
+  private static String formatPackages(Set<String> packages) {
+    return packages
+      .stream()
+      .sorted()
+      .map(x -> "//" + x)
+      .collect(Collectors.joining(", "));
+  }
+
+  /**
+   * Start watching the directories of our packages and source files that we aren't already.
+   */
+  private void watchDirectories() throws IOException {
+    var directories = new TreeSet<Path>();
+    for (var json : jsonInfos.values()) {
+      var packageName = getPackage(json);
+      if (packageName != null) {
+        directories.add(workspaceDir().resolve(packageName));
+      }
+    }
+    for (var file : javaPackages.keySet()) {
+      directories.add(file.getParent());
+    }
+    for (var file : otherSources) {
+      directories.add(file.getParent());
+    }
+    for (var directory : directories) {
+      if (!watchedDirs.contains(directory) && Files.isDirectory(directory)) {
+        var key = directory.register(
+          watchService,
+          ENTRY_CREATE,
+          ENTRY_DELETE,
+          ENTRY_MODIFY
+        );
+        watchKeys.put(key, directory);
+        watchedDirs.add(directory);
+      }
+    }
+  }
+
+  private void loop() throws InterruptedException {
+    while (!stopped) {
+      var changedFiles = new LinkedHashSet<Path>();
+      var overflow = false;
+      var key = watchService.poll(COMMAND_POLL_MILLIS, TimeUnit.MILLISECONDS);
+      while (key != null) {
+        overflow |= collectEvents(key, changedFiles);
+        key = watchService.poll(DEBOUNCE_MILLIS, TimeUnit.MILLISECONDS);
+      }
+
+      try {
+        if (overflow) {
+          System.err.println("Too many changes, regenerating everything...");
+          regenerate();
+        } else {
+          var packages = getChangedPackages(changedFiles);
+          if (!packages.isEmpty()) {
+            packages.addAll(pendingPackages);
+            pendingPackages.addAll(packages);
+            update(packages);
+            pendingPackages.clear();
+          }
+        }
+      } catch (IOException | RuntimeException e) {
+        warning("Update failed, will try again on the next change (%s)".formatted(e));
+      }
+
+      Command command;
+      while ((command = commands.poll()) != null) {
+        execute(command);
+      }
+    }
+  }
+
+  /**
+   * Add the files changed according to the key's events, and return true if events were
+   * lost.
+   */
+  private boolean collectEvents(WatchKey key, Set<Path> changedFiles) {
+    var overflow = false;
+    var directory = watchKeys.get(key);
+    for (var event : key.pollEvents()) {
+      if (event.kind() == OVERFLOW) {
+        overflow = true;
+      } else if (directory != null) {
+        var name = (Path) event.context();
+        changedFiles.add(directory.resolve(name));
+      }
+    }
+    if (!key.reset()) {
+      watchKeys.remove(key);
+      watchedDirs.remove(directory);
+    }
+    return overflow;
+  }
+
+  /**
+   * The packages whose targets could be different because of the changed files.
+   */
+  private Set<String> getChangedPackages(Set<Path> changedFiles) {
+    var result = new TreeSet<String>();
+    for (var file : changedFiles) {
+      var name = file.getFileName().toString();
+      if (
+        name.startsWith(".") || name.equals("pom.xml") || name.equals("target")
+      ) {
+        // Our own output, Maven's output or temporary files
+        continue;
+      }
+      if (BUILD_FILE_NAMES.contains(name)) {
+        // Creating or deleting a BUILD file moves files between this package and its parent
+        result.add(workspaceDir().relativize(file.getParent()).toString());
+        var parent = findPackage(file.getParent().getParent());
+        if (parent != null) {
+          result.add(parent);
+        }
+        continue;
+      }
+      if (Files.isDirectory(file)) {
+        continue;
+      }
+      Main.javaPackageIndex.invalidate(
+        workspaceDir().relativize(file.getParent()).toString()
+      );
+      if (isChangedSource(file)) {
+        var owner = findPackage(file.getParent());
+        if (owner != null) {
+          result.add(owner);
+        }
+      }
+    }
+    return result;
+  }
+
+  /**
+   * Whether a change to this file could change what our targets contain. Editing a file we
+   * already know about only matters if its Java package changed.
+   */
+  private boolean isChangedSource(Path file) {
+    var exists = Files.isRegularFile(file);
+    var javaPackage = javaPackages.get(file);
+    if (javaPackage != null && exists) {
+      try {
+        return !javaPackage.equals(
+          Main.getJavaPackage(workspaceDir().relativize(file).toString())
+        );
+      } catch (InvalidPathException e) {
+        return true;
+      }
+    }
+    var known = javaPackage != null || otherSources.contains(file);
+    return exists != known;
+  }
+
+  private void execute(Command command) {
+    var args = Arrays
+      .stream(command.line().trim().split("\\s+"))
+      .filter(x -> !x.isEmpty())
+      .toList();
+    try {
+      var name = args.isEmpty() ? "" : args.get(0);
+      switch (name) {
+        case "status" -> command
+          .reply()
+          .complete(
+            "%d targets in %d modules, watching %d directories%s".formatted(
+                targets.size(),
+                maps.modulesByPath.size(),
+                watchedDirs.size(),
+                pendingPackages.isEmpty()
+                  ? ""
+                  : ", failed to update " + formatPackages(pendingPackages)
+              )
+          );
+        case "refresh" -> {
+          var packages = new TreeSet<String>();
+          for (var arg : args.subList(1, args.size())) {
+            packages.add(parsePackage(arg));
+          }
+          if (packages.isEmpty()) {
+            throw new IllegalArgumentException("Expected packages to refresh");
+          }
+          update(packages);
+          command.reply().complete("Refreshed " + formatPackages(packages));
+        }
+        case "regenerate" -> {
+          regenerate();
+          command.reply().complete("Regenerated");
+        }
+        case "stop" -> {
+          stopped = true;
+          command.reply().complete("Stopping");
+        }
+        default -> throw new IllegalArgumentException(
+          "Unknown command \"%s\"".formatted(command.line())
+        );
+      }
+    } catch (IOException | RuntimeException e) {
+      command.reply().complete("Failed: " + e.getMessage());
+    }
+  }
+
+  /**
+   * Whether another daemon is accepting connections on the socket.
+   */
+  private static boolean isListening(UnixDomainSocketAddress address) {
+    try {
+      SocketChannel.open(address).close();
+      return true;
+    } catch (IOException e) {
+      return false;
+    }
+  }
+
+  /**
+   * Accept commands on our Unix domain socket on a background thread.
+   */
+  private void listen() throws IOException {
+    Files.createDirectories(socketPath.getParent());
+    var address = UnixDomainSocketAddress.of(socketPath);
+    if (Files.exists(socketPath)) {
+      if (isListening(address)) {
+        throw new IllegalStateException(
+          "Already running, see " + socketPath
+        );
+      }
+      // Left over from a daemon that didn't exit cleanly
+      Files.delete(socketPath);
+    }
+    server = ServerSocketChannel.open(StandardProtocolFamily.UNIX);
+    server.bind(address);
+    Runtime
+      .getRuntime()
+      .addShutdownHook(
+        new Thread(() -> {
+          try {
+            Files.deleteIfExists(socketPath);
+          } catch (IOException e) {
+            // Nothing we can do
+          }
+        })
+      );
+
+    Thread
+      .ofVirtual()
+      .name("daemon-socket")
+      .start(() -> {
+        while (!stopped) {
+          SocketChannel client;
+          try {
+            client = server.accept();
+          } catch (ClosedChannelException e) {
+            return;
+          } catch (IOException e) {
+            warning("Failed to accept connection (%s)".formatted(e));
+            continue;
+          }
+          Thread.ofVirtual().start(() -> handle(client));
+        }
+      });
+  }
+
+  private void handle(SocketChannel client) {
+    try (
+      client;
+      var reader = new BufferedReader(Channels.newReader(client, UTF_8));
+      var writer = Channels.newWriter(client, UTF_8)
+    ) {
+      var line = reader.readLine();
+      if (line == null) {
+        return;
+      }
+      var command = new Command(line, new CompletableFuture<>());
+      commands.add(command);
+      writer.write(command.reply().get() + "\n");
+    } catch (IOException | ExecutionException e) {
+      warning("Failed to handle command (%s)".formatted(e));
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  @Override
+  public void close() throws IOException {
+    stopped = true;
+    try {
+      if (server != null) {
+        server.close();
+        Files.deleteIfExists(socketPath);
+      }
+    } finally {
+      watchService.close();
+    }
+    // Anyone still waiting for a reply
+    Command command;
+    while ((command = commands.poll()) != null) {
+      command.reply().complete("Stopped");
+    }
+  }
+}
@@ -0,0 +1,492 @@
+// Copyright 2023 Canva Inc. All Rights Reserved.
+
+package com.canva.pomgen;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.function.IntConsumer;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+
+/**
+ * The dependency graph of the targets in Maps with every output, JavaCompile target and
+ * module interned to a dense int ID, so traversals are walks over int arrays instead of
+ * HashMap lookups keyed by exec root paths.
+ * <p>
+ * Edges are stored in compressed sparse row form: the edges of node i are
+ * values[offsets[i]] until values[offsets[i + 1]]. For each DepType there are the outputs
+ * each target depends on including extra deps. Across both DepTypes there are the targets
+ * each target depends on and the targets that depend on each target. Both keep the order
+ * the edges were first found in, without duplicates.
+ * <p>
+ * The graph is immutable. When the targets in Maps change, update() builds a new one that
+ * copies the rows of the targets the change doesn't reach from this one.
+ */
+@SuppressWarnings("Convert2MethodRef")
+final class DependencyGraph {
+
+  /**
+   * Edges in compressed sparse row form.
+   */
+  private record Edges(int[] offsets, int[] values) {
+    IntStream stream(int node) {
+      return Arrays.stream(values, offsets[node], offsets[node + 1]);
+    }
+
+    void forEach(int node, IntConsumer consumer) {
+      for (var i = offsets[node]; i < offsets[node + 1]; i++) {
+        consumer.accept(values[i]);
+      }
+    }
+  }
+
+  /**
+   * Builds Edges one node at a time, in order of node ID.
+   */
+  private static final class EdgesBuilder {
+
+    private final int[] offsets;
+    private int[] values = new int[16];
+    private int nodes;
+    private int size;
+
+    EdgesBuilder(int numNodes) {
+      offsets = new int[numNodes + 1];
+    }
+
+    void add(int value) {
+      if (size == values.length) {
+        values = Arrays.copyOf(values, size * 2);
+      }
+      values[size++] = value;
+    }
+
+    void endNode() {
+      offsets[++nodes] = size;
+    }
+
+    Edges build() {
+      return new Edges(offsets, Arrays.copyOf(values, size));
+    }
+  }
+
+  private final Map<String, Integer> outputIds;
+  private final String[] outputs;
+  private final AbstractParsedTarget[] outputTargets;
+
+  private final JavaCompile[] targets;
+  private final Map<JavaCompile, Integer> targetIds = new IdentityHashMap<>();
+  private final int[] targetModules;
+
+  private final Map<String, Integer> moduleIds = new HashMap<>();
+  private final String[] modules;
+
+  private final Map<DepType, Edges> depOutputs = new EnumMap<>(DepType.class);
+  private final Edges deps;
+  private final Edges reverseDeps;
+
+  /**
+   * @param targets the JavaCompile targets in Maps, in the order to number them
+   */
+  DependencyGraph(
+    List<JavaCompile> targets,
+    Map<String, AbstractParsedTarget> mapOutputsToTarget,
+    ExtraDepsClosure extraDepsClosure
+  ) {
+    this(
+      targets,
+      mapOutputsToTarget,
+      extraDepsClosure,
+      null,
+      Set.of(),
+      Set.of()
+    );
+  }
+
+  /**
+   * The graph of the targets in Maps after they changed.
+   * <p>
+   * Outputs keep their IDs. The dep rows of a target are copied from this graph, with the
+   * target IDs renumbered, unless the target is in changedTargets (compared by identity) or
+   * depends on one of changedOutputs, which must include every output whose target or
+   * closure of extra deps changed. Only the other rows are flattened through the extra deps
+   * closure again. The reverse deps are rebuilt from the dep rows, which only walks int
+   * arrays and the outputs of each target.
+   */
+  DependencyGraph update(
+    List<JavaCompile> targets,
+    Map<String, AbstractParsedTarget> mapOutputsToTarget,
+    ExtraDepsClosure extraDepsClosure,
+    Set<String> changedOutputs,
+    Set<AbstractParsedTarget> changedTargets
+  ) {
+    return new DependencyGraph(
+      targets,
+      mapOutputsToTarget,
+      extraDepsClosure,
+      this,
+      changedOutputs,
+      changedTargets
+    );
+  }
+
+  private DependencyGraph(
+    List<JavaCompile> targets,
+    Map<String, AbstractParsedTarget> mapOutputsToTarget,
+    ExtraDepsClosure extraDepsClosure,
+    DependencyGraph previous,
+    Set<String> changedOutputs,
+    Set<AbstractParsedTarget> changedTargets
+  ) {
+    this.targets = targets.toArray(JavaCompile[]::new);
+    for (var i = 0; i < this.targets.length; i++) {
+      targetIds.put(this.targets[i], i);
+    }
+
+    var outputList = new ArrayList<String>();
+    if (previous == null) {
+      outputIds = new HashMap<>();
+      outputList.addAll(mapOutputsToTarget.keySet());
+      outputList.forEach(x -> outputIds.put(x, outputIds.size()));
+    } else {
+      outputIds = new HashMap<>(previous.outputIds);
+      outputList.addAll(Arrays.asList(previous.outputs));
+    }
+
+    // The ID in the previous graph of each target whose rows can be copied, or -1, and the
+    // new ID of each target of the previous graph that is still here, or -1
+    var previousIds = new int[this.targets.length];
+    Arrays.fill(previousIds, -1);
+    var newIds = new int[previous == null ? 0 : previous.targets.length];
+    Arrays.fill(newIds, -1);
+    if (previous != null) {
+      var changed = new boolean[previous.outputs.length];
+      for (var output : changedOutputs) {
+        var id = previous.outputIds.get(output);
+        if (id != null) {
+          changed[id] = true;
+        }
+      }
+      for (var i = 0; i < this.targets.length; i++) {
+        var id = previous.targetIds.get(this.targets[i]);
+        if (id == null) {
+          continue;
+        }
+        newIds[id] = i;
+        if (
+          !changedTargets.contains(this.targets[i]) &&
+          !previous.dependsOnAny(id, changed)
+        ) {
+          previousIds[i] = id;
+        }
+      }
+    }
+
+    var moduleList = new ArrayList<String>();
+    targetModules = new int[this.targets.length];
+    for (var i = 0; i < this.targets.length; i++) {
+      var module = this.targets[i].module();
+      targetModules[i] =
+        moduleIds.computeIfAbsent(
+          module,
+          x -> {
+            moduleList.add(x);
+            return moduleList.size() - 1;
+          }
+        );
+    }
+    modules = moduleList.toArray(String[]::new);
+
+    // Deps can be outputs no target provides, they get IDs too
+    for (var type : DepType.values()) {
+      var builder = new EdgesBuilder(this.targets.length);
+      for (var i = 0; i < this.targets.length; i++) {
+        if (previousIds[i] != -1) {
+          previous.depOutputs
+            .get(type)
+            .forEach(previousIds[i], x -> builder.add(x));
+          builder.endNode();
+          continue;
+        }
+        this.targets[i]
+          .getDeps(type)
+          .stream()
+          .flatMap(x -> extraDepsClosure.flatten(x, type))
+          .distinct()
+          .forEach(x -> {
+            builder.add(
+              outputIds.computeIfAbsent(
+                x,
+                y -> {
+                  outputList.add(y);
+                  return outputList.size() - 1;
+                }
+              )
+            );
+          });
+        builder.endNode();
+      }
+      depOutputs.put(type, builder.build());
+    }
+
+    outputs = outputList.toArray(String[]::new);
+    outputTargets = new AbstractParsedTarget[outputs.length];
+    var known = 0;
+    if (previous != null) {
+      known = previous.outputs.length;
+      System.arraycopy(previous.outputTargets, 0, outputTargets, 0, known);
+      for (var output : changedOutputs) {
+        var id = outputIds.get(output);
+        if (id != null && id < known) {
+          outputTargets[id] = mapOutputsToTarget.get(output);
+        }
+      }
+    }
+    for (var i = known; i < outputs.length; i++) {
+      outputTargets[i] = mapOutputsToTarget.get(outputs[i]);
+    }
+
+    // Marks which nodes were already added for the current node, by storing its ID + 1
+    var added = new int[Math.max(this.targets.length, outputs.length)];
+
+    var depsBuilder = new EdgesBuilder(this.targets.length);
+    for (var i = 0; i < this.targets.length; i++) {
+      if (previousIds[i] != -1) {
+        previous.deps.forEach(previousIds[i], x -> depsBuilder.add(newIds[x]));
+        depsBuilder.endNode();
+        continue;
+      }
+      for (var type : DepType.values()) {
+        var edges = depOutputs.get(type);
+        for (var j = edges.offsets[i]; j < edges.offsets[i + 1]; j++) {
+          var dep = findTargetId(outputTargets[edges.values[j]]);
+          if (dep != -1 && added[dep] != i + 1) {
+            added[dep] = i + 1;
+            depsBuilder.add(dep);
+          }
+        }
+      }
+      depsBuilder.endNode();
+    }
+    deps = depsBuilder.build();
+
+    // The targets depending on each output, across both DepTypes
+    Arrays.fill(added, 0);
+    var outputCounts = new int[outputs.length + 1];
+    var outputDependents = new int[outputs.length][];
+    for (var i = 0; i < this.targets.length; i++) {
+      for (var type : DepType.values()) {
+        var target = i;
+        depOutputs
+          .get(type)
+          .forEach(
+            i,
+            x -> {
+              if (added[x] != target + 1) {
+                added[x] = target + 1;
+                var list = outputDependents[x];
+                if (list == null) {
+                  list = outputDependents[x] = new int[2];
+                } else if (outputCounts[x] == list.length) {
+                  list = outputDependents[x] = Arrays.copyOf(list, list.length * 2);
+                }
+                list[outputCounts[x]++] = target;
+              }
+            }
+          );
+      }
+    }
+
+    Arrays.fill(added, 0);
+    var reverseBuilder = new EdgesBuilder(this.targets.length);
+    for (var i = 0; i < this.targets.length; i++) {
+      for (var output : this.targets[i].outputs()) {
+        var id = outputIds.get(output);
+        if (id == null || outputDependents[id] == null) {
+          continue;
+        }
+        for (var j = 0; j < outputCounts[id]; j++) {
+          var dependent = outputDependents[id][j];
+          if (added[dependent] != i + 1) {
+            added[dependent] = i + 1;
+            reverseBuilder.add(dependent);
+          }
+        }
+      }
+      reverseBuilder.endNode();
+    }
+    reverseDeps = reverseBuilder.build();
+  }
+
+  /**
+   * Whether the target depends on any of the outputs marked in changed.
+   */
+  private boolean dependsOnAny(int target, boolean[] changed) {
+    for (var type : DepType.values()) {
+      var edges = depOutputs.get(type);
+      for (var i = edges.offsets[target]; i < edges.offsets[target + 1]; i++) {
+        if (changed[edges.values[i]]) {
+          return true;
+        }
+      }
+    }
+    return false;
+  }
+
+  private int findTargetId(AbstractParsedTarget target) {
+    if (target instanceof JavaCompile java) {
+      var id = targetIds.get(java);
+      return id == null ? -1 : id;
+    }
+    return -1;
+  }
+
+  public int numOutputs() {
+    return outputs.length;
+  }
+
+  public int numTargets() {
+    return targets.length;
+  }
+
+  public int numModules() {
+    return modules.length;
+  }
+
+  public String getOutput(int output) {
+    return outputs[output];
+  }
+
+  /**
+   * The target providing the output, or null if there isn't one.
+   */
+  public AbstractParsedTarget getOutputTarget(int output) {
+    return outputTargets[output];
+  }
+
+  public JavaCompile getTarget(int target) {
+    return targets[target];
+  }
+
+  /**
+   * The ID of the target, which must be one of the targets this graph was built from.
+   */
+  public int getTargetId(JavaCompile target) {
+    var id = targetIds.get(target);
+    if (id == null) {
+      throw new IllegalArgumentException("Unknown target " + target.label());
+    }
+    return id;
+  }
+
+  public String getModule(int module) {
+    return modules[module];
+  }
+
+  /**
+   * The ID of the module, or -1 if it has no targets.
+   */
+  public int getModuleId(String module) {
+    return moduleIds.getOrDefault(module, -1);
+  }
+
+  public int getTargetModule(int target) {
+    return targetModules[target];
+  }
+
+  /**
+   * The outputs the target depends on through the given DepType, including extra deps.
+   */
+  public IntStream getDepOutputIds(int target, DepType type) {
+    return depOutputs.get(type).stream(target);
+  }
+
+  public Stream<String> getDepOutputs(JavaCompile target, DepType type) {
+    return depOutputs
+      .get(type)
+      .stream(getTargetId(target))
+      .mapToObj(x -> outputs[x]);
+  }
+
+  /**
+   * The JavaCompile targets the target depends on through either DepType, including extra
+   * deps.
+   */
+  public IntStream getDepIds(int target) {
+    return deps.stream(target);
+  }
+
+  public Stream<JavaCompile> getDeps(JavaCompile target) {
+    return deps.stream(getTargetId(target)).mapToObj(x -> targets[x]);
+  }
+
+  /**
+   * The JavaCompile targets depending on an output of the target through either DepType.
+   */
+  public IntStream getReverseDepIds(int target) {
+    return reverseDeps.stream(target);
+  }
+
+  public Stream<JavaCompile> getReverseDeps(JavaCompile target) {
+    return reverseDeps.stream(getTargetId(target)).mapToObj(x -> targets[x]);
+  }
+
+  /**
+   * The targets depending on any of the seeds, directly or transitively. Seeds are only
+   * included if they depend on another seed.
+   * <p>
+   * This is a breadth first search where each level is expanded in parallel, with the
+   * visited set as a bitset of atomic words so each target is claimed by exactly one thread.
+   */
+  public BitSet getReverseClosure(int[] seeds) {
+    var visited = new AtomicLongArray((targets.length + 63) / 64);
+    var frontier = seeds;
+    while (frontier.length > 0) {
+      frontier =
+        IntStream
+          .of(frontier)
+          .parallel()
+          .flatMap(x -> reverseDeps.stream(x).filter(y -> claim(visited, y)))
+          .toArray();
+    }
+
+    var words = new long[visited.length()];
+    for (var i = 0; i < words.length; i++) {
+      words[i] = visited.get(i);
+    }
+    return BitSet.valueOf(words);
+  }
+
+  private static boolean claim(AtomicLongArray visited, int target) {
+    var word = target >>> 6;
+    var bit = 1L << target;
+    while (true) {
+      var old = visited.get(word);
+      if ((old & bit) != 0) {
+        return false;
+      }
+      if (visited.compareAndSet(word, old, old | bit)) {
+        return true;
+      }
+    }
+  }
+
+  /**
+   * The paths of the modules of the given targets.
+   */
+  public Set<String> getModules(BitSet targets) {
+    return targets
+      .stream()
+      .mapToObj(x -> modules[targetModules[x]])
+      .collect(Collectors.toSet());
+  }
+}
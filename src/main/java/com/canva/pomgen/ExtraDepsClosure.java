@@ -0,0 +1,233 @@
+// Copyright 2023 Canva Inc. All Rights Reserved.
+
+package com.canva.pomgen;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.stream.Stream;
+
+/**
+ * The transitive closure of getExtraDeps() for every output, computed once up front so that
+ * diamonds in the (often large) dependency graphs of Maven artifacts aren't expanded again for
+ * every dependency of every target.
+ * <p>
+ * Outputs reachable through extra deps are interned to int IDs, and each closure is stored as
+ * a sorted int[] of those IDs, so it takes space in proportion to its own size rather than to
+ * the number of IDs. The closure of an output is the union of the closures of its extra deps,
+ * merged in linear time. Outputs without extra deps aren't stored at all, their closure is
+ * just themselves.
+ * <p>
+ * Extra deps can form cycles (lock files of rules_jvm_external can have them), so the strongly
+ * connected components of the outputs being computed are found first with
+ * ModuleCycles.findComponents(), and every output in a component gets the same closure. The
+ * components come dependencies first, so no recursion is needed.
+ * <p>
+ * It is only read between calls to update(), so it is safe to share between threads then.
+ */
+@SuppressWarnings("Convert2MethodRef")
+final class ExtraDepsClosure {
+
+  private final Map<String, AbstractParsedTarget> mapOutputsToTarget;
+  private final Map<String, Integer> ids = new HashMap<>();
+  private final List<String> outputs = new ArrayList<>();
+  private final Map<DepType, Map<String, int[]>> closures = new EnumMap<>(
+    DepType.class
+  );
+
+  ExtraDepsClosure(Map<String, AbstractParsedTarget> mapOutputsToTarget) {
+    this.mapOutputsToTarget = mapOutputsToTarget;
+    for (var type : DepType.values()) {
+      var typeClosures = new HashMap<String, int[]>();
+      closures.put(type, typeClosures);
+      compute(mapOutputsToTarget.keySet().stream().sorted().toList(), type, typeClosures);
+    }
+  }
+
+  /**
+   * Recompute the closures that could have changed because the targets providing the given
+   * outputs changed, and return those outputs along with every output whose closure reached
+   * one of them. Finding them is a scan over the stored closures, only they are computed
+   * again.
+   */
+  public Set<String> update(Set<String> changedOutputs) {
+    var changedIds = new boolean[outputs.size()];
+    for (var output : changedOutputs) {
+      var id = ids.get(output);
+      if (id != null) {
+        changedIds[id] = true;
+      }
+    }
+    var stale = new HashSet<>(changedOutputs);
+    for (var typeClosures : closures.values()) {
+      typeClosures.forEach((output, closure) -> {
+        for (var id : closure) {
+          if (changedIds[id]) {
+            stale.add(output);
+            break;
+          }
+        }
+      });
+    }
+
+    for (var type : DepType.values()) {
+      var typeClosures = closures.get(type);
+      typeClosures.keySet().removeAll(stale);
+      compute(stale.stream().sorted().toList(), type, typeClosures);
+    }
+    return stale;
+  }
+
+  /**
+   * The given output followed by the transitive closure of its extra deps, without
+   * duplicates.
+   */
+  public Stream<String> flatten(String output, DepType type) {
+    var closure = closures.get(type).get(output);
+    if (closure == null) {
+      return Stream.of(output);
+    }
+    var id = ids.get(output);
+    return Stream.concat(
+      Stream.of(output),
+      Arrays.stream(closure).filter(x -> x != id).mapToObj(x -> outputs.get(x))
+    );
+  }
+
+  /**
+   * Compute and store the closures of the given outputs, and of the outputs they reach
+   * through extra deps, that aren't stored yet.
+   */
+  private void compute(
+    List<String> roots,
+    DepType type,
+    Map<String, int[]> typeClosures
+  ) {
+    // Number the outputs reached from the roots, stopping at those without extra deps or with
+    // a stored closure, and collect the edges between them
+    var nodes = new ArrayList<String>(roots);
+    var nodeIds = new HashMap<String, Integer>();
+    for (var i = 0; i < nodes.size(); i++) {
+      nodeIds.put(nodes.get(i), i);
+    }
+    var depIds = new ArrayList<int[]>();
+    for (var i = 0; i < nodes.size(); i++) {
+      var deps = getExtraDeps(nodes.get(i), type, typeClosures);
+      var ids = new int[deps.size()];
+      for (var j = 0; j < ids.length; j++) {
+        ids[j] =
+          nodeIds.computeIfAbsent(
+            deps.get(j),
+            x -> {
+              nodes.add(x);
+              return nodes.size() - 1;
+            }
+          );
+      }
+      depIds.add(ids);
+    }
+    var offsets = new int[nodes.size() + 1];
+    for (var i = 0; i < nodes.size(); i++) {
+      offsets[i + 1] = offsets[i] + depIds.get(i).length;
+    }
+    var edges = new int[offsets[nodes.size()]];
+    for (var i = 0; i < nodes.size(); i++) {
+      System.arraycopy(depIds.get(i), 0, edges, offsets[i], depIds.get(i).length);
+    }
+
+    var nodeClosures = new int[nodes.size()][];
+    var componentOf = new int[nodes.size()];
+    var components = ModuleCycles.findComponents(offsets, edges);
+    for (var c = 0; c < components.size(); c++) {
+      var component = components.get(c);
+      for (var v : component) {
+        componentOf[v] = c;
+      }
+      if (component.length == 1 && offsets[component[0]] == offsets[component[0] + 1]) {
+        var output = nodes.get(component[0]);
+        var done = typeClosures.get(output);
+        nodeClosures[component[0]] = done != null ? done : new int[] { intern(output) };
+        continue;
+      }
+
+      var closure = Arrays
+        .stream(component)
+        .map(x -> intern(nodes.get(x)))
+        .sorted()
+        .toArray();
+      for (var v : component) {
+        for (var i = offsets[v]; i < offsets[v + 1]; i++) {
+          if (componentOf[edges[i]] != c) {
+            closure = union(closure, nodeClosures[edges[i]]);
+          }
+        }
+      }
+      for (var v : component) {
+        nodeClosures[v] = closure;
+        typeClosures.put(nodes.get(v), closure);
+      }
+    }
+  }
+
+  /**
+   * The extra deps of an output whose closure still has to be computed, or an empty list if
+   * it is stored already or is only the output itself.
+   */
+  private List<String> getExtraDeps(
+    String output,
+    DepType type,
+    Map<String, int[]> typeClosures
+  ) {
+    if (typeClosures.containsKey(output)) {
+      return List.of();
+    }
+    var target = mapOutputsToTarget.get(output);
+    if (target == null) {
+      // Left for the caller to fail on when it looks up the target
+      return List.of();
+    }
+    return target.getExtraDeps(type);
+  }
+
+  /**
+   * Merge two sorted arrays of IDs, without duplicates.
+   */
+  private static int[] union(int[] a, int[] b) {
+    var result = new int[a.length + b.length];
+    var i = 0;
+    var j = 0;
+    var n = 0;
+    while (i < a.length && j < b.length) {
+      if (a[i] < b[j]) {
+        result[n++] = a[i++];
+      } else if (a[i] > b[j]) {
+        result[n++] = b[j++];
+      } else {
+        result[n++] = a[i++];
+        j++;
+      }
+    }
+    while (i < a.length) {
+      result[n++] = a[i++];
+    }
+    while (j < b.length) {
+      result[n++] = b[j++];
+    }
+    return n == result.length ? result : Arrays.copyOf(result, n);
+  }
+
+  private int intern(String output) {
+    return ids.computeIfAbsent(
+      output,
+      x -> {
+        outputs.add(x);
+        return outputs.size() - 1;
+      }
+    );
+  }
+}
@@ -0,0 +1,275 @@
+// Copyright 2023 Canva Inc. All Rights Reserved.
+
+package com.canva.pomgen;
+
+import static com.canva.pomgen.JsonTargetInfo.warning;
+import static com.canva.pomgen.Main.workspaceDir;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.PosixFilePermission;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collection;
+import java.util.HexFormat;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Supplier;
+
+/**
+ * Keeps track of the files we generate in the workspace in a manifest of content hashes, so
+ * that a run only writes the files whose content changed and only deletes the files that
+ * were generated last time but not this time.
+ */
+final class GeneratedFiles {
+
+  private static final int VERSION = 2;
+
+  private static final Set<PosixFilePermission> DEFAULT_PERMISSIONS = PosixFilePermissions.fromString(
+    "rw-r--r--"
+  );
+
+  /**
+   * files are content hashes keyed by workspace relative path, and modules are the
+   * coordinates of the generated Maven modules keyed by module path.
+   */
+  record Manifest(
+    int version,
+    Map<String, String> files,
+    Map<String, MavenCoordinate> modules
+  ) {}
+
+  private final Path manifestPath;
+
+  /**
+   * Hashes of the files generated by the previous run, keyed by workspace relative path, or
+   * null if we don't have a manifest from a previous run.
+   */
+  private final Map<String, String> previous;
+  private final Map<String, String> current = new ConcurrentHashMap<>();
+  private final Map<String, MavenCoordinate> previousModules;
+  private final Map<String, MavenCoordinate> currentModules = new ConcurrentHashMap<>();
+
+  /**
+   * Files that may have been generated by a previous run that we don't have a manifest for.
+   */
+  private final Collection<String> legacyFiles;
+
+  private GeneratedFiles(
+    Path manifestPath,
+    Map<String, String> previous,
+    Map<String, MavenCoordinate> previousModules,
+    Collection<String> legacyFiles
+  ) {
+    this.manifestPath = manifestPath;
+    this.previous = previous;
+    this.previousModules = previousModules;
+    this.legacyFiles = legacyFiles;
+  }
+
+  /**
+   * Load the manifest from the previous run. If there isn't one, legacyFiles is called to get
+   * the files that might have been generated by an older version of this tool.
+   */
+  public static GeneratedFiles load(
+    Path manifestPath,
+    Supplier<Collection<String>> legacyFiles
+  ) {
+    try {
+      var manifest = Main.mapper.readValue(
+        manifestPath.toFile(),
+        Manifest.class
+      );
+      if (manifest.version() == VERSION) {
+        return new GeneratedFiles(
+          manifestPath,
+          manifest.files(),
+          Objects.requireNonNullElse(manifest.modules(), Map.of()),
+          null
+        );
+      }
+    } catch (NoSuchFileException | FileNotFoundException e) {
+      // First run
+    } catch (IOException e) {
+      warning("Ignoring unreadable manifest %s (%s)".formatted(manifestPath, e));
+    }
+    return new GeneratedFiles(manifestPath, null, Map.of(), legacyFiles.get());
+  }
+
+  public boolean hasManifest() {
+    return previous != null;
+  }
+
+  /**
+   * The modules generated by the previous run, empty if we don't have a manifest.
+   */
+  public Map<String, MavenCoordinate> getPreviousModules() {
+    return previousModules;
+  }
+
+  /**
+   * Record a Maven module that is part of the generated project.
+   */
+  public void addModule(String path, MavenCoordinate coordinate) {
+    currentModules.put(path, coordinate);
+  }
+
+  /**
+   * Keep a file generated by the previous run as it is, without generating it again.
+   */
+  public void retain(Path path) {
+    var key = workspaceDir().relativize(path).toString();
+    var hash = previous != null ? previous.get(key) : null;
+    if (hash != null) {
+      current.put(key, hash);
+    }
+  }
+
+  /**
+   * Write the file if its content differs from what we generated last time.
+   */
+  public void write(Path path, byte[] content) {
+    if (writeIfChanged(path, content)) {
+      logWrite(path);
+    }
+  }
+
+  /**
+   * Same as write(), but without logging, and returning whether the file was written so the
+   * caller can call logWrite() in whatever order it likes. Safe to call from multiple threads
+   * for different files.
+   */
+  public boolean writeIfChanged(Path path, byte[] content) {
+    var key = workspaceDir().relativize(path).toString();
+    var hash = hash(content);
+    current.put(key, hash);
+    try {
+      if (hash.equals(getExistingHash(key, path))) {
+        return false;
+      }
+      var temp = Files.createTempFile(
+        path.getParent(),
+        "." + path.getFileName(),
+        ".tmp"
+      );
+      try {
+        Files.write(temp, content);
+        setPermissions(temp, path);
+        Files.move(
+          temp,
+          path,
+          StandardCopyOption.REPLACE_EXISTING,
+          StandardCopyOption.ATOMIC_MOVE
+        );
+      } finally {
+        Files.deleteIfExists(temp);
+      }
+      return true;
+    } catch (IOException e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  /**
+   * Temp files are created only readable by us, so give the temp file the permissions of the
+   * file it replaces, or the ones Files.write() would have given a new file with the usual
+   * umask.
+   */
+  private static void setPermissions(Path temp, Path path) throws IOException {
+    try {
+      Files.setPosixFilePermissions(
+        temp,
+        Files.exists(path)
+          ? Files.getPosixFilePermissions(path)
+          : DEFAULT_PERMISSIONS
+      );
+    } catch (UnsupportedOperationException e) {
+      // Not a POSIX file system, the temp file already has the default permissions
+    }
+  }
+
+  public void logWrite(Path path) {
+    System.err.println("Writing " + workspaceDir().relativize(path));
+  }
+
+  private String getExistingHash(String key, Path path) throws IOException {
+    if (!Files.exists(path)) {
+      return null;
+    } else if (previous != null) {
+      return previous.get(key);
+    } else {
+      // No manifest, so look at what is actually there
+      return hash(Files.readAllBytes(path));
+    }
+  }
+
+  /**
+   * Delete the files generated last time that weren't generated this time, and save the
+   * manifest for next time.
+   */
+  public void finish() {
+    var stale = previous != null ? previous.keySet() : legacyFiles;
+    for (var key : stale.stream().sorted().toList()) {
+      if (current.containsKey(key)) {
+        continue;
+      }
+      try {
+        if (Files.deleteIfExists(workspaceDir().resolve(key))) {
+          System.err.println("Deleting " + key);
+        }
+      } catch (IOException e) {
+        throw new RuntimeException(e);
+      }
+    }
+
+    if (current.equals(previous) && currentModules.equals(previousModules)) {
+      return;
+    }
+    try {
+      Files.createDirectories(manifestPath.getParent());
+      var temp = Files.createTempFile(
+        manifestPath.getParent(),
+        "manifest-",
+        ".tmp"
+      );
+      try {
+        Main.mapper.writeValue(
+          temp.toFile(),
+          new Manifest(
+            VERSION,
+            new TreeMap<>(current),
+            new TreeMap<>(currentModules)
+          )
+        );
+        Files.move(
+          temp,
+          manifestPath,
+          StandardCopyOption.REPLACE_EXISTING,
+          StandardCopyOption.ATOMIC_MOVE
+        );
+      } finally {
+        Files.deleteIfExists(temp);
+      }
+    } catch (IOException e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  private static String hash(byte[] content) {
+    try {
+      return HexFormat
+        .of()
+        .formatHex(MessageDigest.getInstance("SHA-256").digest(content));
+    } catch (NoSuchAlgorithmException e) {
+      throw new RuntimeException(e);
+    }
+  }
+}
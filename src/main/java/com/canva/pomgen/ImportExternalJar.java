@@ -8,6 +8,7 @@ import java.util.List;
 public record ImportExternalJar(
   Path jsonPath,
   List<String> outputs,
+  List<String> exports,
   List<String> jars,
   MavenCoordinate coordinate,
   List<String> compileDeps,
@@ -27,7 +28,7 @@ public record ImportExternalJar(
   @Override
   public List<String> getExtraDeps(DepType type) {
     return switch (type) {
-      case Compile -> compileDeps;
+      case Compile -> Main.concat(compileDeps, exports);
       case Runtime -> runtimeDeps;
     };
   }
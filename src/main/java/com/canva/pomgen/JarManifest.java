@@ -0,0 +1,117 @@
+// Copyright 2023 Canva Inc. All Rights Reserved.
+
+package com.canva.pomgen;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Reads the packages of the source files of a target from the manifest proto Bazel writes
+ * next to each jar it compiles (libfoo.jar_manifest_proto), so the source files themselves
+ * don't have to be opened.
+ * <p>
+ * The manifest is a blaze.buildjar.Manifest message, with a CompilationUnit for each source
+ * file holding its path (field 1) and package (field 2). We don't depend on protobuf for
+ * just that, the wire format is decoded here directly and every other field is skipped.
+ */
+final class JarManifest {
+
+  private static final int WIRE_VARINT = 0;
+  private static final int WIRE_FIXED64 = 1;
+  private static final int WIRE_LENGTH_DELIMITED = 2;
+  private static final int WIRE_FIXED32 = 5;
+
+  private final byte[] bytes;
+  private int pos;
+
+  private JarManifest(byte[] bytes) {
+    this.bytes = bytes;
+  }
+
+  /**
+   * The package of each exec root relative source file in the manifest. Files in the default
+   * package (like module-info.java) are left out.
+   */
+  public static Map<String, String> readPackages(Path path) throws IOException {
+    var result = new HashMap<String, String>();
+    var reader = new JarManifest(Files.readAllBytes(path));
+    while (reader.pos < reader.bytes.length) {
+      var tag = reader.readVarint();
+      if (tag >>> 3 == 1 && (tag & 7) == WIRE_LENGTH_DELIMITED) {
+        var length = (int) reader.readVarint();
+        reader.checkAvailable(length);
+        reader.readCompilationUnit(reader.pos + length, result);
+      } else {
+        reader.skip((int) tag & 7);
+      }
+    }
+    return result;
+  }
+
+  private void readCompilationUnit(int end, Map<String, String> result)
+    throws IOException {
+    String path = null;
+    String javaPackage = null;
+    while (pos < end) {
+      var tag = readVarint();
+      var field = tag >>> 3;
+      if ((field == 1 || field == 2) && (tag & 7) == WIRE_LENGTH_DELIMITED) {
+        var length = (int) readVarint();
+        checkAvailable(length);
+        var value = new String(bytes, pos, length, StandardCharsets.UTF_8);
+        pos += length;
+        if (field == 1) {
+          path = value;
+        } else {
+          javaPackage = value;
+        }
+      } else {
+        skip((int) tag & 7);
+      }
+    }
+    if (pos != end) {
+      throw new IOException("Truncated compilation unit");
+    }
+    if (path != null && javaPackage != null && !javaPackage.isEmpty()) {
+      result.put(path, javaPackage);
+    }
+  }
+
+  private long readVarint() throws IOException {
+    var result = 0L;
+    for (var shift = 0; shift < 64; shift += 7) {
+      checkAvailable(1);
+      var b = bytes[pos++];
+      result |= (long) (b & 0x7f) << shift;
+      if (b >= 0) {
+        return result;
+      }
+    }
+    throw new IOException("Malformed varint");
+  }
+
+  private void skip(int wireType) throws IOException {
+    switch (wireType) {
+      case WIRE_VARINT -> readVarint();
+      case WIRE_FIXED64 -> skipBytes(8);
+      case WIRE_LENGTH_DELIMITED -> skipBytes((int) readVarint());
+      case WIRE_FIXED32 -> skipBytes(4);
+      default -> throw new IOException("Unsupported wire type " + wireType);
+    }
+  }
+
+  private void skipBytes(int length) throws IOException {
+    checkAvailable(length);
+    pos += length;
+  }
+
+  private void checkAvailable(int length) throws IOException {
+    if (length < 0 || length > bytes.length - pos) {
+      throw new IOException("Truncated manifest");
+    }
+  }
+}
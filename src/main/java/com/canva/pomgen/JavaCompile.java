@@ -3,11 +3,8 @@
 package com.canva.pomgen;
 
 import java.nio.file.Path;
-import java.util.Arrays;
-import java.util.HashSet;
 import java.util.List;
 import java.util.Optional;
-import java.util.Set;
 import java.util.stream.Stream;
 
 @SuppressWarnings("Convert2MethodRef")
@@ -17,6 +14,7 @@ public record JavaCompile(
   Optional<MavenCoordinate> coords,
   String module,
   List<String> outputs,
+  List<String> exports,
   List<SourcePath> srcs,
   List<SourcePath> resources,
   List<String> compileDeps,
@@ -53,61 +51,24 @@ public record JavaCompile(
     return Stream.concat(srcs.stream(), resources.stream());
   }
 
-  public Stream<String> getDepsWithExtraDeps(Maps maps) {
-    return Arrays
-      .stream(DepType.values())
-      .flatMap(type -> getDepsWithExtraDeps(type, maps))
-      .distinct();
-  }
-
-  public Stream<JavaCompile> getDepsWithExtraDepsDeepSameModule(
-    Maps maps,
-    Set<Path> seen
-  ) {
-    return Stream.concat(
-      Stream.of(this),
-      getDepsWithExtraDepsJavaCompile(maps)
-        .filter(x -> seen.add(x.jsonPath))
-        .filter(x -> x.module.equals(module))
-        .flatMap(x -> x.getDepsWithExtraDepsDeepSameModule(maps, seen))
-    );
-  }
-
-  public Stream<JavaCompile> getReverseDepsWithExtraDepsDeepSameModule(
-    Maps maps,
-    Set<Path> seen
-  ) {
-    return Stream.concat(
-      Stream.of(this),
-      getReverseDepsWithExtraDeps(maps)
-        .filter(x -> seen.add(x.jsonPath))
-        .filter(x -> x.module.equals(module))
-        .flatMap(x -> x.getReverseDepsWithExtraDepsDeepSameModule(maps, seen))
-    );
-  }
-
   public Stream<JavaCompile> getDepsWithExtraDepsJavaCompile(Maps maps) {
-    return getDepsWithExtraDeps(maps)
-      .map(x -> maps.mapOutputsToTarget.get(x))
-      .flatMap(Main.isInstance(JavaCompile.class));
+    return maps.getGraph().getDeps(this);
   }
 
   public Stream<JavaCompile> getReverseDepsWithExtraDeps(Maps maps) {
-    return outputs
-      .stream()
-      .flatMap(x -> maps.reverseDepsWithExtraDeps.getOrDefault(x, List.of()).stream());
+    return maps.getGraph().getReverseDeps(this);
   }
 
-  public Stream<JavaCompile> getReverseDepsWithExtraDepsRecursive(
-      Maps maps,
-      HashSet<String> seen
-  ) {
-    return getReverseDepsWithExtraDeps(maps)
-        .filter(x -> seen.add(x.label))
-        .flatMap(x -> Stream.concat(
-            Stream.of(x),
-            x.getReverseDepsWithExtraDepsRecursive(maps, seen)
-        ));
+  /**
+   * Depending on this target also means depending on what it exports, which the aspect only
+   * lists once here rather than in the compileJars of every target depending on it.
+   */
+  @Override
+  public List<String> getExtraDeps(DepType type) {
+    return switch (type) {
+      case Compile -> exports;
+      case Runtime -> List.of();
+    };
   }
 
   public List<String> getDeps(DepType type) {
@@ -118,10 +79,7 @@ public record JavaCompile(
   }
 
   public Stream<String> getDepsWithExtraDeps(DepType type, Maps maps) {
-    return getDeps(type)
-      .stream()
-      .flatMap(x -> maps.flattenExtraDeps(x, type))
-      .distinct();
+    return maps.getGraph().getDepOutputs(this, type);
   }
 
   @Override
@@ -135,11 +93,6 @@ public record JavaCompile(
       .distinct()
       .count();
   }
-
-  public boolean hasDirectDependencyOnModule(String module, Maps maps) {
-    return getDepsWithExtraDepsJavaCompile(maps)
-      .anyMatch(x -> x.module.equals(module));
-  }
 }
 
 
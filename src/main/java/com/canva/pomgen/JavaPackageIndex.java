@@ -0,0 +1,296 @@
+// Copyright 2023 Canva Inc. All Rights Reserved.
+
+package com.canva.pomgen;
+
+import static com.canva.pomgen.Main.toAbsolutePath;
+
+import com.canva.pomgen.Main.InvalidPathException;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Finds the Java package of source files, reading only a short prefix of most of them.
+ * <p>
+ * The package found in the first file read from a directory is expected for the rest of the
+ * directory if the directory path ends in that package, which is the layout parseJavaPath
+ * requires anyway. The other files are verified by reading just their first VERIFY_BYTES,
+ * falling back to reading the whole declaration if it doesn't fit. Once a file turns out to
+ * have a different package, or the directory doesn't end in the package at all, the
+ * directory is treated as mixed and every file in it is read in full.
+ * <p>
+ * The first file is read PREFIX_BYTES at a time, enough to get past the license header,
+ * annotations and other comments that can come before the package declaration.
+ */
+final class JavaPackageIndex {
+
+  private static final int PREFIX_BYTES = 8 * 1024;
+  private static final int VERIFY_BYTES = 1024;
+
+  /**
+   * The package of each directory (with a trailing slash), or empty if it is mixed.
+   */
+  private final Map<String, Optional<String>> directories = new ConcurrentHashMap<>();
+
+  /**
+   * The package of the given exec root relative .java file.
+   */
+  public String getPackage(String path) throws InvalidPathException {
+    var directory = path.substring(0, path.lastIndexOf('/') + 1);
+    var file = toAbsolutePath(path);
+    var known = directories.get(directory);
+    String javaPackage = null;
+    if (known != null && known.isPresent() && !isModuleInfo(path)) {
+      javaPackage = readPackage(file, VERIFY_BYTES);
+    }
+    if (javaPackage == null) {
+      javaPackage = readPackage(file);
+    }
+    if (known == null) {
+      known =
+        directories.putIfAbsent(
+          directory,
+          isPackageDirectory(directory, javaPackage)
+            ? Optional.of(javaPackage)
+            : Optional.empty()
+        );
+    }
+    if (known != null && !known.equals(Optional.of(javaPackage))) {
+      directories.put(directory, Optional.empty());
+    }
+    return javaPackage;
+  }
+
+  /**
+   * Forget what we know about a directory, because its files have changed.
+   */
+  public void invalidate(String directory) {
+    directories.remove(directory.endsWith("/") ? directory : directory + "/");
+  }
+
+  public void clear() {
+    directories.clear();
+  }
+
+  private static boolean isModuleInfo(String path) {
+    // Has no package declaration, so mustn't be given the directory's package
+    return path.endsWith("/module-info.java");
+  }
+
+  private static boolean isPackageDirectory(String directory, String javaPackage) {
+    var suffix = "/" + javaPackage.replace(".", "/") + "/";
+    var withSlash = "/" + directory;
+    return (
+      withSlash.endsWith(suffix) ||
+      withSlash.replace("/generated/", "/").endsWith(suffix)
+    );
+  }
+
+  /**
+   * Read the package declaration of a .java file, starting with the first PREFIX_BYTES of the
+   * file and reading more only if the declaration isn't found in them.
+   */
+  public static String readPackage(Path file) throws InvalidPathException {
+    return readPackage(file, Long.MAX_VALUE);
+  }
+
+  /**
+   * Read the package declaration from at most the first maxBytes of a .java file, or return
+   * null if it doesn't end within them.
+   */
+  private static String readPackage(Path file, long maxBytes)
+    throws InvalidPathException {
+    try (var channel = FileChannel.open(file, StandardOpenOption.READ)) {
+      var size = channel.size();
+      if (size == 0) {
+        throw new InvalidPathException("File is empty");
+      }
+      var limit = Math.min(size, maxBytes);
+      var buffer = ByteBuffer.allocate((int) Math.min(limit, PREFIX_BYTES));
+      while (true) {
+        while (buffer.hasRemaining() && channel.read(buffer) != -1) {
+          // Keep reading until the buffer is full
+        }
+        var complete = buffer.hasRemaining() || buffer.capacity() >= size;
+        var text = new String(
+          buffer.array(),
+          0,
+          buffer.position(),
+          StandardCharsets.UTF_8
+        );
+        var javaPackage = new Scanner(text, complete).scanPackage();
+        if (javaPackage != null || buffer.capacity() >= limit) {
+          return javaPackage;
+        }
+        var larger = ByteBuffer.allocate(
+          (int) Math.min(limit, (long) buffer.capacity() * 4)
+        );
+        larger.put(buffer.flip());
+        buffer = larger;
+      }
+    } catch (IOException e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  /**
+   * Skips whitespace, comments and annotations to find the package declaration at the start
+   * of a compilation unit.
+   */
+  private static final class Scanner {
+
+    /**
+     * Returned by peek() past the end of the text. Not whitespace or part of an identifier.
+     */
+    private static final char END = '\uFFFF';
+
+    private final String text;
+    private final boolean complete;
+    private int pos;
+
+    Scanner(String text, boolean complete) {
+      this.text = text;
+      this.complete = complete;
+      if (text.startsWith("\uFEFF")) {
+        pos = 1;
+      }
+    }
+
+    /**
+     * The declared package, or null if the text ends before we can tell.
+     */
+    String scanPackage() throws InvalidPathException {
+      var javaPackage = scanDeclaration();
+      if (javaPackage != null) {
+        return javaPackage;
+      }
+      if (pos >= text.length() && !complete) {
+        return null;
+      }
+      throw new InvalidPathException("No package line found");
+    }
+
+    /**
+     * The declared package, or null if there isn't one before the end of the text or the
+     * first type declaration.
+     */
+    private String scanDeclaration() {
+      while (true) {
+        skipTrivia();
+        if (peek() == '@') {
+          pos++;
+          skipTrivia();
+          if (identifier().equals("interface")) {
+            return null;
+          }
+          skipQualifiedNameRest();
+          skipTrivia();
+          if (peek() == '(') {
+            skipParentheses();
+          }
+        } else if (identifier().equals("package")) {
+          var result = new StringBuilder();
+          skipTrivia();
+          result.append(identifier());
+          skipTrivia();
+          while (peek() == '.') {
+            pos++;
+            skipTrivia();
+            result.append('.').append(identifier());
+            skipTrivia();
+          }
+          return peek() == ';' ? result.toString() : null;
+        } else {
+          return null;
+        }
+      }
+    }
+
+    private boolean atEnd() {
+      return pos >= text.length();
+    }
+
+    private char peek() {
+      return atEnd() ? END : text.charAt(pos);
+    }
+
+    private void skipTrivia() {
+      while (!atEnd()) {
+        var c = peek();
+        if (Character.isWhitespace(c)) {
+          pos++;
+        } else if (text.startsWith("//", pos)) {
+          var end = text.indexOf('\n', pos);
+          if (end == -1) {
+            pos = text.length();
+          } else {
+            pos = end + 1;
+          }
+        } else if (text.startsWith("/*", pos)) {
+          var end = text.indexOf("*/", pos + 2);
+          if (end == -1) {
+            pos = text.length();
+          } else {
+            pos = end + 2;
+          }
+        } else {
+          return;
+        }
+      }
+    }
+
+    private String identifier() {
+      var start = pos;
+      while (!atEnd() && Character.isJavaIdentifierPart(peek())) {
+        pos++;
+      }
+      return text.substring(start, pos);
+    }
+
+    private void skipQualifiedNameRest() {
+      skipTrivia();
+      while (peek() == '.') {
+        pos++;
+        skipTrivia();
+        identifier();
+        skipTrivia();
+      }
+    }
+
+    /**
+     * Skip an annotation's arguments, which can contain nested parentheses, string and char
+     * literals and comments.
+     */
+    private void skipParentheses() {
+      var depth = 0;
+      do {
+        skipTrivia();
+        var c = peek();
+        pos++;
+        if (c == '(') {
+          depth++;
+        } else if (c == ')') {
+          depth--;
+        } else if (c == '"' || c == '\'') {
+          if (c == '"' && text.startsWith("\"\"", pos)) {
+            var end = text.indexOf("\"\"\"", pos + 2);
+            pos = end == -1 ? text.length() : end + 3;
+            continue;
+          }
+          while (!atEnd() && peek() != c) {
+            pos += peek() == '\\' ? 2 : 1;
+          }
+          pos++;
+        }
+      } while (depth > 0 && !atEnd());
+      pos = Math.min(pos, text.length());
+    }
+  }
+}
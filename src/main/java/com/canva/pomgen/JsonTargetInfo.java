@@ -2,26 +2,26 @@
 
 package com.canva.pomgen;
 
-import static com.canva.pomgen.Main.toAbsolutePath;
-
 import com.canva.pomgen.Main.InvalidPathException;
 
-import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.nio.file.Path;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Objects;
 import java.util.Optional;
-import java.util.Set;
 import java.util.stream.Stream;
 
 @SuppressWarnings("Convert2MethodRef")
 public record JsonTargetInfo(
   List<String> compileJars,
+  List<String> exportJars,
   List<String> jars,
   List<String> javaCopts,
   String kind,
   String label,
+  List<String> manifestProtos,
   String mavenCoords,
   String mavenUrl,
   List<String> otherInfos,
@@ -40,51 +40,66 @@ public record JsonTargetInfo(
     System.err.println("\033[1;93mWARNING\033[0m " + message);
   }
 
-  public static List<AndPath> readAllRecursive(
-    Path path,
-    Set<Path> seen
-  ) {
-    if (seen.add(path)) {
-      try {
-        var target = JsonTargetInfo.read(path);
-        // toList() to eagerly catch any errors from our dependencies.
-        // Even if our .json file exists we want to fail if any of our dependencies
-        // .json files can't be read.
-        return Stream.concat(
-          Stream.of(target),
-          target.json.otherInfos
-            .stream()
-            .flatMap(x -> readAllRecursive(toAbsolutePath(x), seen).stream())
-        ).toList();
-      } catch (Throwable e) {
-        // Undo the seen.add() so nobody else thinks this file has already been read successfully
-        seen.remove(path);
-        throw e;
-      }
-    } else {
-      return List.of();
-    }
-  }
-
   public static AndPath read(Path path) {
     try {
-      var object = Main.mapper.readValue(path.toFile(), JsonTargetInfo.class);
-      return new AndPath(object, path);
+      return new AndPath(JsonTargetInfoReader.read(path), path);
     } catch (IOException e) {
       throw new RuntimeException(e);
     }
   }
 
+  interface JavaPathParser {
+    SourcePath parse(String path) throws InvalidPathException;
+  }
+
+  /**
+   * The packages of the source files listed in the manifests of the jars of the target, if
+   * the aspect was asked for them. Source files that aren't in one are read to find their
+   * package instead.
+   */
+  private Map<String, String> readManifestPackages() {
+    if (manifestProtos == null || manifestProtos.isEmpty()) {
+      return Map.of();
+    }
+    var result = new HashMap<String, String>();
+    for (var manifest : manifestProtos) {
+      try {
+        result.putAll(JarManifest.readPackages(Main.toAbsolutePath(manifest)));
+      } catch (IOException e) {
+        warning(
+          "Reading source files instead of manifest %s (%s)".formatted(
+              manifest,
+              e.getMessage()
+            )
+        );
+      }
+    }
+    return result;
+  }
+
   public AbstractParsedTarget parse(Path jsonPath) {
+    return parse(jsonPath, x -> Main.parseJavaPath(x));
+  }
+
+  public AbstractParsedTarget parse(
+    Path jsonPath,
+    JavaPathParser javaPathParser
+  ) {
     var maybeCoords = Optional
       .ofNullable(mavenCoords)
       .map(MavenCoordinate::parse);
 
+    var manifestPackages = readManifestPackages();
     var srcsPaths = srcs
       .stream()
       .flatMap(x -> {
         try {
-          return Stream.of(Main.parseJavaPath(x));
+          var javaPackage = manifestPackages.get(x);
+          return Stream.of(
+            javaPackage != null
+              ? Main.parseJavaPath(x, javaPackage)
+              : javaPathParser.parse(x)
+          );
         } catch (InvalidPathException e) {
           warning("Skipping source file %s (%s)".formatted(x, e.getMessage()));
           return Stream.empty();
@@ -134,6 +149,7 @@ public record JsonTargetInfo(
         maybeCoords,
         modules.get(0),
         outputJars,
+        exportJars,
         srcsPaths,
         resourcesPaths,
         compileJars,
@@ -160,6 +176,7 @@ public record JsonTargetInfo(
       return new MavenArtifact(
         jsonPath,
         outputJars,
+        exportJars,
         coords,
         repo,
         compileJars,
@@ -172,6 +189,7 @@ public record JsonTargetInfo(
       return new ImportExternalJar(
         jsonPath,
         outputJars,
+        exportJars,
         jars,
         maybeCoords.orElseGet(() ->
           MavenCoordinate.createFromPath(
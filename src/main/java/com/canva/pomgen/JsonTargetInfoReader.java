@@ -0,0 +1,227 @@
+// Copyright 2023 Canva Inc. All Rights Reserved.
+
+package com.canva.pomgen;
+
+import com.fasterxml.jackson.core.JsonParseException;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Decodes *-maven-info.json files straight from bytes with a JsonParser, instead of going
+ * through ObjectMapper's reflective record binding. We read hundreds of thousands of these so
+ * the buffers they are read into are pooled.
+ * <p>
+ * Files written in the aspect's compact format have a pathPrefixes field, and each of their
+ * paths is "&lt;index&gt;:&lt;rest&gt;" for the path pathPrefixes[index] + rest. These are
+ * expanded back to full paths here, so nothing else needs to know about the format.
+ */
+final class JsonTargetInfoReader {
+
+  private static final int INITIAL_BUFFER_SIZE = 16 * 1024;
+
+  private static final ConcurrentLinkedQueue<byte[]> buffers = new ConcurrentLinkedQueue<>();
+
+  private JsonTargetInfoReader() {}
+
+  public static JsonTargetInfo read(Path path) throws IOException {
+    // FileInputStream so a missing file is reported as a FileNotFoundException
+    try (var input = new FileInputStream(path.toFile())) {
+      var size = input.getChannel().size();
+      if (size > Integer.MAX_VALUE - 8) {
+        throw new IOException("File too large: " + path);
+      }
+      var buffer = acquire((int) size);
+      try {
+        var length = input.readNBytes(buffer, 0, (int) size);
+        return decode(buffer, 0, length);
+      } finally {
+        buffers.offer(buffer);
+      }
+    }
+  }
+
+  private static byte[] acquire(int size) {
+    var buffer = buffers.poll();
+    if (buffer == null || buffer.length < size) {
+      buffer = new byte[Math.max(size, INITIAL_BUFFER_SIZE)];
+    }
+    return buffer;
+  }
+
+  public static JsonTargetInfo decode(byte[] bytes, int offset, int length)
+    throws IOException {
+    try (
+      var parser = Main.mapper
+        .getFactory()
+        .createParser(bytes, offset, length)
+    ) {
+      expect(parser, parser.nextToken(), JsonToken.START_OBJECT);
+
+      List<String> compileJars = null;
+      List<String> exportJars = null;
+      List<String> jars = null;
+      List<String> javaCopts = null;
+      String kind = null;
+      String label = null;
+      List<String> manifestProtos = null;
+      String mavenCoords = null;
+      String mavenUrl = null;
+      List<String> otherInfos = null;
+      List<String> outputJars = null;
+      List<String> pluginClasses = null;
+      List<String> pluginJars = null;
+      String resourceStripPrefix = null;
+      List<String> resources = null;
+      List<String> runtimeJars = null;
+      List<String> srcs = null;
+      var testOnly = false;
+      List<String> pathPrefixes = null;
+
+      String field;
+      while ((field = parser.nextFieldName()) != null) {
+        switch (field) {
+          case "compileJars" -> compileJars = readStrings(parser);
+          case "exportJars" -> exportJars = readStrings(parser);
+          case "jars" -> jars = readStrings(parser);
+          case "javaCopts" -> javaCopts = readStrings(parser);
+          case "kind" -> kind = readString(parser);
+          case "label" -> label = readString(parser);
+          case "manifestProtos" -> manifestProtos = readStrings(parser);
+          case "mavenCoords" -> mavenCoords = readString(parser);
+          case "mavenUrl" -> mavenUrl = readString(parser);
+          case "otherInfos" -> otherInfos = readStrings(parser);
+          case "outputJars" -> outputJars = readStrings(parser);
+          case "pathPrefixes" -> pathPrefixes = readStrings(parser);
+          case "pluginClasses" -> pluginClasses = readStrings(parser);
+          case "pluginJars" -> pluginJars = readStrings(parser);
+          case "resourceStripPrefix" -> resourceStripPrefix = readString(parser);
+          case "resources" -> resources = readStrings(parser);
+          case "runtimeJars" -> runtimeJars = readStrings(parser);
+          case "srcs" -> srcs = readStrings(parser);
+          case "testOnly" -> testOnly = readBoolean(parser);
+          default -> throw new JsonParseException(
+            parser,
+            "Unrecognized field \"%s\"".formatted(field)
+          );
+        }
+      }
+      expect(parser, parser.currentToken(), JsonToken.END_OBJECT);
+
+      if (pathPrefixes != null) {
+        compileJars = expandPaths(compileJars, pathPrefixes);
+        exportJars = expandPaths(exportJars, pathPrefixes);
+        jars = expandPaths(jars, pathPrefixes);
+        manifestProtos = expandPaths(manifestProtos, pathPrefixes);
+        otherInfos = expandPaths(otherInfos, pathPrefixes);
+        outputJars = expandPaths(outputJars, pathPrefixes);
+        pluginJars = expandPaths(pluginJars, pathPrefixes);
+        resources = expandPaths(resources, pathPrefixes);
+        runtimeJars = expandPaths(runtimeJars, pathPrefixes);
+        srcs = expandPaths(srcs, pathPrefixes);
+      }
+
+      return new JsonTargetInfo(
+        compileJars,
+        exportJars,
+        jars,
+        javaCopts,
+        kind,
+        label,
+        manifestProtos,
+        mavenCoords,
+        mavenUrl,
+        otherInfos,
+        outputJars,
+        pluginClasses,
+        pluginJars,
+        resourceStripPrefix,
+        resources,
+        runtimeJars,
+        srcs,
+        testOnly
+      );
+    }
+  }
+
+  static String readString(JsonParser parser) throws IOException {
+    var token = parser.nextToken();
+    if (token == JsonToken.VALUE_NULL) {
+      return null;
+    }
+    expect(parser, token, JsonToken.VALUE_STRING);
+    return parser.getText();
+  }
+
+  private static boolean readBoolean(JsonParser parser) throws IOException {
+    var token = parser.nextToken();
+    if (token == JsonToken.VALUE_TRUE) {
+      return true;
+    } else if (token == JsonToken.VALUE_FALSE || token == JsonToken.VALUE_NULL) {
+      return false;
+    }
+    throw new JsonParseException(parser, "Expected boolean, got " + token);
+  }
+
+  static List<String> readStrings(JsonParser parser)
+    throws IOException {
+    var token = parser.nextToken();
+    if (token == JsonToken.VALUE_NULL) {
+      return null;
+    }
+    expect(parser, token, JsonToken.START_ARRAY);
+    token = parser.nextToken();
+    if (token == JsonToken.END_ARRAY) {
+      return List.of();
+    }
+    var result = new ArrayList<String>();
+    do {
+      expect(parser, token, JsonToken.VALUE_STRING);
+      result.add(parser.getText());
+    } while ((token = parser.nextToken()) != JsonToken.END_ARRAY);
+    return result;
+  }
+
+  private static List<String> expandPaths(
+    List<String> paths,
+    List<String> prefixes
+  ) throws IOException {
+    if (paths == null || paths.isEmpty()) {
+      return paths;
+    }
+    var result = new ArrayList<String>(paths.size());
+    for (var path : paths) {
+      var colon = path.indexOf(':');
+      int index;
+      try {
+        index = colon == -1 ? -1 : Integer.parseInt(path, 0, colon, 10);
+      } catch (NumberFormatException e) {
+        index = -1;
+      }
+      if (index < 0 || index >= prefixes.size()) {
+        throw new IOException("Invalid compact path \"%s\"".formatted(path));
+      }
+      result.add(prefixes.get(index).concat(path.substring(colon + 1)));
+    }
+    return result;
+  }
+
+  static void expect(
+    JsonParser parser,
+    JsonToken actual,
+    JsonToken expected
+  ) throws IOException {
+    if (actual != expected) {
+      throw new JsonParseException(
+        parser,
+        "Expected %s, got %s".formatted(expected, actual)
+      );
+    }
+  }
+}
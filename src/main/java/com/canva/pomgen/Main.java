@@ -7,9 +7,15 @@ import static java.nio.file.FileVisitResult.CONTINUE;
 import com.fasterxml.jackson.databind.ObjectMapper;
 
 import java.io.*;
+import java.lang.ProcessBuilder.Redirect;
 import java.nio.file.*;
 import java.nio.file.attribute.BasicFileAttributes;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.function.Function;
 import java.util.regex.Pattern;
 import java.util.stream.Collectors;
@@ -42,11 +48,27 @@ public class Main {
 
   public static final ObjectMapper mapper = new ObjectMapper();
 
-  public static final Path workspaceDir;
-  public static final Path realBazelBinPath;
-  public static final Path bazelExecRoot;
-  public static final Path bazelOutputBase;
-  public static final BazelInfo bazelInfo;
+  record BazelDirs(
+    Path workspaceDir,
+    Path realBazelBinPath,
+    Path bazelExecRoot,
+    Path bazelOutputBase
+  ) {
+    BazelDirs(BazelInfo info) {
+      this(
+        Path.of(info.workspace()),
+        Path.of(info.bazelBin()),
+        Path.of(info.executionRoot()),
+        Path.of(info.outputBase())
+      );
+    }
+  }
+
+  /**
+   * Read lazily, so "bazel info" can run concurrently with the query.
+   */
+  private static final CompletableFuture<BazelDirs> bazelDirs = new CompletableFuture<>();
+  private static final AtomicBoolean bazelDirsStarted = new AtomicBoolean();
 
   private static final boolean isDebug = Boolean.parseBoolean(
     System.getenv("CANVA_POMGEN_DEBUG")
@@ -55,24 +77,167 @@ public class Main {
     System.getenv("CANVA_POMGEN_USE_MULTI_MODULE")
   );
 
-  static {
-    bazelInfo = readBazelInfo();
-    workspaceDir = Path.of(bazelInfo.workspace());
-    realBazelBinPath = Path.of(bazelInfo.bazelBin());
-    bazelExecRoot = Path.of(bazelInfo.executionRoot());
-    bazelOutputBase = Path.of(bazelInfo.outputBase());
+  /**
+   * Make the root pom.xml the parent of the modules, holding their plugin configuration,
+   * properties and repositories instead of repeating them in every module pom.xml. See
+   * ParentPom.
+   */
+  public static final boolean USE_PARENT_POM = Boolean.parseBoolean(
+    System.getenv("CANVA_POMGEN_USE_PARENT_POM")
+  );
+
+  /**
+   * Instead of running a query to find the targets and then building the aspect on them,
+   * build the aspect on "//..." and find the targets from the build events. This saves a
+   * loading and analysis phase, but note unlike the query "//..." skips targets tagged
+   * "manual".
+   */
+  public static final boolean USE_SINGLE_INVOCATION = Boolean.parseBoolean(
+    System.getenv("CANVA_POMGEN_SINGLE_INVOCATION")
+  );
+
+  /**
+   * Have the aspect write its .json files indented and with full paths, for reading them while
+   * debugging. Otherwise they are written compactly, see JsonTargetInfoReader.
+   */
+  private static final boolean USE_READABLE_ASPECT_OUTPUT = Boolean.parseBoolean(
+    System.getenv("CANVA_POMGEN_READABLE_ASPECT_OUTPUT")
+  );
+
+  /**
+   * Have the aspect list the manifest Bazel writes for each jar it compiles, and take the
+   * packages of source files from those instead of reading the source files. This makes the
+   * aspect build the jars of our targets though, which is only cheap with a warm cache. See
+   * JarManifest.
+   */
+  private static final boolean USE_JAR_MANIFESTS = Boolean.parseBoolean(
+    System.getenv("CANVA_POMGEN_USE_JAR_MANIFESTS")
+  );
+
+  /**
+   * Workspace relative paths of rules_jvm_external lock files, separated by commas. The Maven
+   * artifacts pinned in them are resolved from the lock files, and the aspect skips the
+   * jvm_import targets of their repositories instead of writing a .json file for each. See
+   * MavenLockFiles and getMavenLockFiles().
+   */
+  private static final List<String> MAVEN_LOCK_FILES = Optional
+    .ofNullable(System.getenv("CANVA_POMGEN_MAVEN_LOCK_FILES"))
+    .stream()
+    .flatMap(x -> Arrays.stream(x.split(",")))
+    .map(x -> x.trim())
+    .filter(x -> !x.isEmpty())
+    .toList();
+
+  /**
+   * Rendering pom.xml files is CPU bound, so it gets a thread per core.
+   */
+  private static final int RENDER_THREADS = Runtime.getRuntime().availableProcessors();
+
+  /**
+   * Enumerating the elementary cycles between modules is exponential in the worst case, so
+   * the report stops after this many.
+   */
+  private static final int MAX_REPORTED_CYCLES = 1000;
+
+  /**
+   * Keep running after generating the pom.xml files, and regenerate the affected ones
+   * whenever a BUILD file or source file changes. See Daemon.
+   */
+  public static final boolean USE_WATCH = Boolean.parseBoolean(
+    System.getenv("CANVA_POMGEN_WATCH")
+  );
+
+  /**
+   * Start working out the Bazel directories in the background, if we haven't already.
+   */
+  public static void startReadingBazelInfo() {
+    if (bazelDirsStarted.compareAndSet(false, true)) {
+      Thread
+        .ofVirtual()
+        .name("bazel-info")
+        .start(() -> {
+          try {
+            bazelDirs.complete(new BazelDirs(loadBazelInfo()));
+          } catch (Throwable e) {
+            bazelDirs.completeExceptionally(e);
+          }
+        });
+    }
+  }
+
+  private static BazelDirs getBazelDirs() {
+    startReadingBazelInfo();
+    return join(bazelDirs);
+  }
+
+  /**
+   * Wait for the future, rethrowing what it failed with as is if it is unchecked.
+   */
+  private static <T> T join(CompletableFuture<T> future) {
+    try {
+      return future.join();
+    } catch (CompletionException e) {
+      if (e.getCause() instanceof RuntimeException cause) {
+        throw cause;
+      }
+      throw e;
+    }
+  }
+
+  public static Path workspaceDir() {
+    return getBazelDirs().workspaceDir();
+  }
+
+  public static Path realBazelBinPath() {
+    return getBazelDirs().realBazelBinPath();
+  }
+
+  public static Path bazelExecRoot() {
+    return getBazelDirs().bazelExecRoot();
+  }
+
+  public static Path bazelOutputBase() {
+    return getBazelDirs().bazelOutputBase();
+  }
+
+  /**
+   * Use the environment from "bazel run" if that's enough, otherwise what we cached from a
+   * previous run if the same Bazel server is still running, otherwise run "bazel info".
+   */
+  private static BazelInfo loadBazelInfo() {
+    var info = BazelInfo.fromEnvironment();
+    if (info != null) {
+      return info;
+    }
+
+    var bazelRunCwd = System.getenv("BUILD_WORKING_DIRECTORY");
+    var workspace = BazelInfo.findWorkspace(
+      Path.of(bazelRunCwd != null ? bazelRunCwd : "")
+    );
+    if (workspace != null) {
+      info = BazelInfo.readCached(workspace);
+      if (info != null) {
+        return info;
+      }
+    }
+
+    info = readBazelInfo();
+    if (info.serverPid() != null) {
+      info.writeCache();
+    }
+    return info;
   }
 
   public static Path toAbsolutePath(String execRootPath) {
     if (execRootPath.startsWith("external/")) {
       // File is in external repo, those are in the output base
-      return bazelOutputBase.resolve(execRootPath);
+      return bazelOutputBase().resolve(execRootPath);
     } else if (execRootPath.startsWith("bazel-out/")) {
       // File is generated, that will be in the exec root
-      return bazelExecRoot.resolve(execRootPath);
+      return bazelExecRoot().resolve(execRootPath);
     } else {
       // Source file in the workspace
-      return workspaceDir.resolve(execRootPath);
+      return workspaceDir().resolve(execRootPath);
     }
   }
 
@@ -130,23 +295,45 @@ public class Main {
     return x -> clazz.isInstance(x) ? Stream.of(clazz.cast(x)) : null;
   }
 
+  private static Process startBazel(List<String> allArgs, Redirect output)
+    throws IOException {
+    // If we are run by "bazel run" then our cwd is our repo in the runfiles tree and Bazel will set
+    // BUILD_WORKING_DIRECTORY to the real cwd of the caller, so we need to use that instead if set.
+    var bazelRunCwd = System.getenv("BUILD_WORKING_DIRECTORY");
+
+    var process = new ProcessBuilder()
+      .command(allArgs)
+      .directory(bazelRunCwd != null ? new File(bazelRunCwd) : null)
+      .redirectInput(PIPE)
+      .redirectOutput(output)
+      .redirectError(isDebug ? INHERIT : DISCARD)
+      .start();
+
+    // close stdin
+    process.getOutputStream().close();
+
+    return process;
+  }
+
+  private static void waitForBazel(Process process, List<String> allArgs)
+    throws InterruptedException {
+    // wait for the process to finish
+    process.waitFor();
+
+    if (process.exitValue() != 0) {
+      throw new RuntimeException(
+        "Bazel command failed (status %d): %s".formatted(
+            process.exitValue(),
+            allArgs
+          )
+      );
+    }
+  }
+
   public static List<String> runBazel(List<String> args) {
     try {
-      // If we are run by "bazel run" then our cwd is our repo in the runfiles tree and Bazel will set
-      // BUILD_WORKING_DIRECTORY to the real cwd of the caller, so we need to use that instead if set.
-      var bazelRunCwd = System.getenv("BUILD_WORKING_DIRECTORY");
-
       var allArgs = Stream.concat(Stream.of("bazel"), args.stream()).toList();
-      var process = new ProcessBuilder()
-        .command(allArgs)
-        .directory(bazelRunCwd != null ? new File(bazelRunCwd) : null)
-        .redirectInput(PIPE)
-        .redirectOutput(PIPE)
-        .redirectError(isDebug ? INHERIT : DISCARD)
-        .start();
-
-      // close stdin
-      process.getOutputStream().close();
+      var process = startBazel(allArgs, PIPE);
 
       // read stdout
       List<String> output;
@@ -154,17 +341,7 @@ public class Main {
         output = reader.lines().toList();
       }
 
-      // wait for the process to finish
-      process.waitFor();
-
-      if (process.exitValue() != 0) {
-        throw new RuntimeException(
-          "Bazel command failed (status %d): %s".formatted(
-              process.exitValue(),
-              allArgs
-            )
-        );
-      }
+      waitForBazel(process, allArgs);
 
       // return stdout
       return output;
@@ -173,9 +350,35 @@ public class Main {
     }
   }
 
+  /**
+   * Run a Bazel command with --build_event_json_file, passing events to the listener while
+   * the command is still running.
+   */
+  public static void runBazelWithBuildEvents(
+    List<String> args,
+    BuildEvents.Listener listener
+  ) {
+    try (
+      var buildEvents = new TemporaryFile("bazel-to-maven-build-events-", ".json")
+    ) {
+      // Straight after the command, so it can't end up among the target patterns
+      var allArgs = new ArrayList<String>();
+      allArgs.add("bazel");
+      allArgs.add(args.get(0));
+      allArgs.add("--build_event_json_file=" + buildEvents.path);
+      allArgs.addAll(args.subList(1, args.size()));
+      var process = startBazel(allArgs, isDebug ? INHERIT : DISCARD);
+      BuildEvents.follow(buildEvents.path, process, listener);
+      waitForBazel(process, allArgs);
+    } catch (IOException | InterruptedException e) {
+      throw new RuntimeException(e);
+    }
+  }
+
   public static BazelInfo readBazelInfo() {
     var map = new HashMap<String, String>();
-    for (var line : runBazel(List.of("info"))) {
+    var args = Stream.concat(Stream.of("info"), BazelInfo.KEYS.stream());
+    for (var line : runBazel(args.toList())) {
       var split = line.split(": ", 2);
       map.put(split[0], split[1]);
     }
@@ -246,6 +449,18 @@ public class Main {
       try (var source = Main.class.getResourceAsStream("maven_pom.bzl")) {
         Files.copy(Objects.requireNonNull(source), tempDir.path.resolve("maven_pom.bzl"));
       }
+      Files.write(
+        tempDir.path.resolve("config.bzl"),
+        List.of(
+          "COMPACT_OUTPUT = " + (USE_READABLE_ASPECT_OUTPUT ? "False" : "True"),
+          "SKIP_MAVEN_REPOSITORIES = " +
+          getMavenLockFiles()
+            .stream()
+            .map(x -> "\"" + x.repository() + "\"")
+            .collect(Collectors.joining(", ", "[", "]")),
+          "EMIT_JAR_MANIFESTS = " + (USE_JAR_MANIFESTS ? "True" : "False")
+        )
+      );
     } catch (IOException e) {
       tempDir.close();
       throw new RuntimeException(e);
@@ -256,7 +471,7 @@ public class Main {
   public static final String BAZEL_QUERY = """
     let
       targets =
-        //...
+        %s
     in
       kind(java_binary, $targets) +
       kind(java_library, $targets) +
@@ -265,81 +480,416 @@ public class Main {
       attr("tags", "[\\[ ]no-ide[,\\]]", $targets)
     """;
 
-  public static List<BazelLabel> runBazelQuery() {
-    return runBazel(List.of("query", BAZEL_QUERY))
+  public static List<BazelLabel> runBazelQuery(TargetPatterns patterns) {
+    return runBazel(
+      List.of("query", BAZEL_QUERY.formatted(patterns.toQueryExpression()))
+    )
       .stream()
       .map(BazelLabel::parse)
       .toList();
   }
 
-  public static void runAspect(List<BazelLabel> labels) {
+  private static List<String> getAspectBuildArgs(Path aspectDir) {
+    return List.of(
+      "build",
+      "--keep_going",
+      "--override_repository=bazel_to_maven_build_aspect=" + aspectDir,
+      "--output_groups=pom_info,pom_info_file",
+      "--aspects=@@bazel_to_maven_build_aspect//:maven_pom.bzl%maven_pom_aspect",
+      "--remote_download_outputs=toplevel"
+    );
+  }
+
+  /**
+   * Build the aspect, adding the .json file of each target to the loader as soon as the build
+   * events say it is done.
+   * <p>
+   * This has to be a build rather than "bazel cquery --output=starlark", even though that
+   * would skip executing actions and writing and downloading the .json files. The aspect reads
+   * rule attributes (kind, tags, srcs, resources, deps, exports, plugins, javacopts) and
+   * cquery's Starlark output only gets a target's label, providers and build options, and
+   * can't apply aspects so MavenPomInfo isn't among the providers either. The .json files are
+   * cached like any other action output, so an unchanged target costs little in a later build.
+   */
+  private static void runAspectBuild(
+    List<String> extraArgs,
+    TargetLoader loader
+  ) {
+    try (var aspectDir = prepareAspectWorkspace()) {
+      var args = new ArrayList<>(getAspectBuildArgs(aspectDir.path));
+      args.addAll(extraArgs);
+      runBazelWithBuildEvents(
+        args,
+        new BuildEvents.Listener() {
+          @Override
+          public void aspectCompleted(BazelLabel label, Path jsonPath) {
+            loader.addRoot(label, jsonPath);
+          }
+
+          @Override
+          public void aspectFailed(BazelLabel label) {
+            // Let the loader report it as skipped if the .json file doesn't exist
+            loader.addRoot(label, label.toMavenPomFilePath());
+          }
+        }
+      );
+    }
+  }
+
+  public static void runAspect(List<BazelLabel> labels, TargetLoader loader) {
     try (
-      var aspectDir = prepareAspectWorkspace();
       var targetList = new TemporaryFile("bazel-to-maven-target-list-", ".txt")) {
 
       Files.write(targetList.path, labels.stream().map(x -> x.toString()).toList());
 
-      runBazel(List.of(
-        "build",
-        "--keep_going",
-        "--override_repository=bazel_to_maven_build_aspect=" + aspectDir.path,
-        "--output_groups=pom_info",
-        "--aspects=@@bazel_to_maven_build_aspect//:maven_pom.bzl%maven_pom_aspect",
-        "--target_pattern_file=" + targetList.path,
-        "--remote_download_outputs=toplevel"
-      ));
+      runAspectBuild(
+        List.of("--target_pattern_file=" + targetList.path),
+        loader
+      );
     } catch (IOException e) {
       throw new RuntimeException(e);
     }
+
+    // In case the build events didn't mention a target
+    for (var label : labels) {
+      if (!loader.hasRoot(label)) {
+        loader.addRoot(label, label.toMavenPomFilePath());
+      }
+    }
   }
 
-  public static void main(String[] args) throws Exception {
+  /**
+   * Build the aspect on the target patterns in one go, filtering by kind in the aspect and by
+   * tag with --build_tag_filters, and add the targets that we got a .json file for to the
+   * loader.
+   */
+  public static void runAspectOnPatterns(
+    TargetPatterns patterns,
+    TargetLoader loader
+  ) {
+    try (
+      var patternFile = new TemporaryFile("bazel-to-maven-target-patterns-", ".txt")
+    ) {
+      Files.write(patternFile.path, patterns.toTargetPatternFileLines());
+
+      runAspectBuild(
+        List.of(
+          "--build_tag_filters=-no-ide",
+          "--target_pattern_file=" + patternFile.path
+        ),
+        loader
+      );
+    } catch (IOException e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  /**
+   * Start the query for the targets matching the patterns in the background, so it can
+   * overlap with reading "bazel info" and whatever else is done until its labels are needed.
+   * Returns null with CANVA_POMGEN_SINGLE_INVOCATION, which doesn't run a query.
+   */
+  static CompletableFuture<List<BazelLabel>> startBazelQuery(
+    TargetPatterns patterns
+  ) {
+    if (USE_SINGLE_INVOCATION) {
+      return null;
+    }
     System.err.println("Running query...");
-    var labels = runBazelQuery();
+    var result = new CompletableFuture<List<BazelLabel>>();
+    Thread
+      .ofVirtual()
+      .name("bazel-query")
+      .start(() -> {
+        try {
+          result.complete(runBazelQuery(patterns));
+        } catch (Throwable e) {
+          result.completeExceptionally(e);
+        }
+      });
+    return result;
+  }
 
-    System.err.printf("Found %d targets%n", labels.size());
+  /**
+   * Find the targets matching the patterns and add their .json files to the loader. query is
+   * the query already started for the patterns with startBazelQuery(), if any.
+   */
+  private static void findTargets(
+    TargetPatterns patterns,
+    CompletableFuture<List<BazelLabel>> query,
+    TargetLoader loader
+  ) {
+    if (USE_SINGLE_INVOCATION) {
+      System.err.println("Running aspect...");
+      var numRoots = loader.getNumRoots();
+      runAspectOnPatterns(patterns, loader);
+
+      System.err.printf("Found %d targets%n", loader.getNumRoots() - numRoots);
+    } else {
+      var labels = join(query != null ? query : startBazelQuery(patterns));
 
-    System.err.println("Running aspect...");
-    runAspect(labels);
+      System.err.printf("Found %d targets%n", labels.size());
 
-    System.err.println("Generating pom.xml files...");
+      var newLabels = labels.stream().filter(x -> !loader.hasRoot(x)).toList();
+      if (!newLabels.isEmpty()) {
+        System.err.println("Running aspect...");
+        runAspect(newLabels, loader);
+      }
+    }
+  }
 
-    var seen = new HashSet<Path>();
-    var targets = labels
+  /**
+   * The modules we need to regenerate in full but haven't got all the targets for, which are
+   * the modules of the targets matched by the patterns (because a module is regenerated as a
+   * whole), and the modules our targets depend on that didn't exist in the previous run
+   * (because otherwise the project would refer to modules that aren't in it).
+   */
+  private static List<String> getIncompleteModules(
+    List<AbstractParsedTarget> targets,
+    Set<Path> rootPaths,
+    TargetPatterns scope,
+    GeneratedFiles generatedFiles
+  ) {
+    return targets
       .stream()
-      .flatMap(label -> {
-        try {
-          return JsonTargetInfo
-            .readAllRecursive(label.toMavenPomFilePath(), seen)
-            .stream();
-        } catch (Throwable e) {
-          if (e.getCause() instanceof FileNotFoundException) {
-            warning("Skipping target %s (%s)".formatted(label, e.getMessage()));
-            return Stream.of();
-          } else {
-            throw e;
-          }
-        }
-      })
-      .map(x -> x.json().parse(x.path()))
-      .sorted(Comparator.comparing(x -> x.getJsonPath()))
+      .flatMap(isInstance(JavaCompile.class))
+      .filter(x ->
+        rootPaths.contains(x.getJsonPath()) ||
+        !generatedFiles.getPreviousModules().containsKey(x.module())
+      )
+      .map(x -> x.module())
+      .filter(x -> !scope.containsModule(x))
+      .distinct()
+      .sorted()
       .toList();
+  }
+
+  /**
+   * The package of the directory we were run from, for resolving relative target patterns.
+   */
+  public static String getWorkingPackage() {
+    var bazelRunCwd = System.getenv("BUILD_WORKING_DIRECTORY");
+    var cwd = Path.of(bazelRunCwd != null ? bazelRunCwd : "").toAbsolutePath();
+    var workspace = workspaceDir().toAbsolutePath();
+    if (!cwd.startsWith(workspace)) {
+      throw new IllegalArgumentException(
+        "Relative target patterns must be used from inside the workspace"
+      );
+    }
+    return workspace.relativize(cwd).toString();
+  }
 
-    var maps = new Maps(targets);
+  public static void main(String[] args) throws Exception {
+    startReadingBazelInfo();
 
-    var done = new HashSet<String>();
-    var cycles = maps.modulesByPath
-      .values()
+    if (USE_WATCH) {
+      if (args.length > 0) {
+        throw new IllegalArgumentException(
+          "Target patterns can't be used with CANVA_POMGEN_WATCH"
+        );
+      }
+      Daemon.run();
+      return;
+    }
+
+    // The modules to regenerate, the rest of the previously generated project is kept as is
+    var scope = TargetPatterns.parse(List.of(args));
+    if (!scope.isWholeWorkspace() && USE_SINGLE_MODULE) {
+      warning(
+        "Target patterns need a multi-module project, regenerating everything"
+      );
+      scope = TargetPatterns.WHOLE_WORKSPACE;
+    }
+
+    // Everything from here on needs the output base, so start the query first for "bazel
+    // info" to run while it does
+    var query = startBazelQuery(scope);
+
+    var generatedFiles = loadGeneratedFiles();
+    if (!scope.isWholeWorkspace() && !generatedFiles.hasManifest()) {
+      warning("No previous run to update, regenerating everything");
+      scope = TargetPatterns.WHOLE_WORKSPACE;
+      // Only happens the first time, so don't bother cancelling the query already started
+      query = startBazelQuery(scope);
+    }
+
+    var cache = loadParseCache();
+    var loaded = loadTargets(scope, query, cache, generatedFiles);
+    cache.save(!loaded.scope().isWholeWorkspace());
+
+    var maps = new Maps(
+      loaded.targets(),
+      getExistingModules(loaded.scope(), generatedFiles),
+      loadMavenLockFiles()
+    );
+    var cycleImpactedModules = findCycleImpactedModules(maps);
+    writePomXmlFiles(maps, cycleImpactedModules, loaded.scope(), generatedFiles);
+  }
+
+  /**
+   * Only pom.xml files whose content changed are written, and pom.xml files generated last
+   * time for modules that no longer exist are deleted.
+   */
+  static GeneratedFiles loadGeneratedFiles() {
+    return GeneratedFiles.load(
+      bazelOutputBase().resolve("bazel-to-maven-build").resolve("manifest.json"),
+      () -> getLegacyPomFiles(workspaceDir().resolve("pom.xml"))
+    );
+  }
+
+  /**
+   * A lock file from CANVA_POMGEN_MAVEN_LOCK_FILES and the name of the maven_install
+   * repository whose artifacts it pins.
+   */
+  record MavenLockFile(String repository, String path) {}
+
+  /**
+   * rules_jvm_external names the lock file of a repository <repository>_install.json.
+   */
+  private static final Pattern lockFileNamePattern = Pattern.compile(
+    "(?:.*/)?([A-Za-z0-9_.-]+)_install\\.json"
+  );
+
+  /**
+   * The lock files to read, given as "<repository>=<path>" or just the path of a lock file
+   * named after its repository.
+   */
+  static List<MavenLockFile> getMavenLockFiles() {
+    return MAVEN_LOCK_FILES
       .stream()
-      .filter(x -> done.add(x.path))
-      .flatMap(x -> x.findCycles(maps, done))
+      .map(x -> {
+        var equals = x.indexOf('=');
+        if (equals != -1) {
+          return new MavenLockFile(
+            x.substring(0, equals).trim(),
+            x.substring(equals + 1).trim()
+          );
+        }
+        var matcher = lockFileNamePattern.matcher(x);
+        if (!matcher.matches()) {
+          throw new IllegalArgumentException(
+            "Can't tell the repository of lock file %s from its name, list it as <repository>=%s in CANVA_POMGEN_MAVEN_LOCK_FILES".formatted(
+                x,
+                x
+              )
+          );
+        }
+        return new MavenLockFile(matcher.group(1), x);
+      })
       .toList();
+  }
+
+  static MavenLockFiles loadMavenLockFiles() {
+    if (MAVEN_LOCK_FILES.isEmpty()) {
+      return MavenLockFiles.EMPTY;
+    }
+    return MavenLockFiles.load(
+      getMavenLockFiles()
+        .stream()
+        .map(x -> workspaceDir().resolve(x.path()))
+        .toList()
+    );
+  }
+
+  static ParseCache loadParseCache() {
+    return ParseCache.load(
+      bazelOutputBase().resolve("bazel-to-maven-build").resolve("parse-cache.json")
+    );
+  }
+
+  /**
+   * The targets loaded for a scope, and the scope itself after widening it to whole modules.
+   */
+  record LoadedTargets(
+    TargetPatterns scope,
+    List<AbstractParsedTarget> targets,
+    Map<Path, JsonTargetInfo> jsonInfos,
+    Map<Path, BazelLabel> rootLabels
+  ) {}
+
+  static LoadedTargets loadTargets(
+    TargetPatterns scope,
+    CompletableFuture<List<BazelLabel>> query,
+    ParseCache cache,
+    GeneratedFiles generatedFiles
+  ) {
+    try (var loader = new TargetLoader(cache)) {
+      findTargets(scope, query, loader);
+
+      System.err.println("Generating pom.xml files...");
+
+      var targets = loader.load();
+
+      // Widen the scope until we have all the targets of every module in it
+      var incomplete = getIncompleteModules(
+        targets,
+        loader.getRootPaths(),
+        scope,
+        generatedFiles
+      );
+      while (!incomplete.isEmpty()) {
+        System.err.printf(
+          "Including the rest of modules %s%n",
+          String.join(", ", incomplete)
+        );
+        var modulePatterns = TargetPatterns.ofModules(incomplete);
+        scope = scope.plus(modulePatterns);
+        findTargets(modulePatterns, null, loader);
+        targets = loader.load();
+        incomplete =
+          getIncompleteModules(
+            targets,
+            loader.getRootPaths(),
+            scope,
+            generatedFiles
+          );
+      }
+      return new LoadedTargets(
+        scope,
+        targets,
+        loader.getJsonInfos(),
+        loader.getRootLabels()
+      );
+    }
+  }
+
+  /**
+   * The modules generated by the previous run that aren't in scope, which we keep as they are.
+   */
+  static Map<String, MavenCoordinate> getExistingModules(
+    TargetPatterns scope,
+    GeneratedFiles generatedFiles
+  ) {
+    var result = new TreeMap<String, MavenCoordinate>();
+    for (var entry : generatedFiles.getPreviousModules().entrySet()) {
+      if (!scope.containsModule(entry.getKey())) {
+        result.put(entry.getKey(), entry.getValue());
+      }
+    }
+    return result;
+  }
+
+  /**
+   * Report the cycles between modules, and return the modules that we can't generate a
+   * pom.xml file for because they are in or depend on a cycle.
+   */
+  static Set<String> findCycleImpactedModules(Maps maps) {
+    var moduleCycles = new ModuleCycles(maps);
+    var cycles = moduleCycles.findElementaryCycles(MAX_REPORTED_CYCLES);
 
     if (!cycles.isEmpty()) {
       System.err.println("Cycles detected:");
       for (var cycle : cycles) {
         System.err.println("  " + String.join(" -> ", cycle));
       }
+      if (cycles.size() == MAX_REPORTED_CYCLES) {
+        System.err.printf(
+          "  (only the first %d cycles are shown, the modules in cycles are %s)%n",
+          MAX_REPORTED_CYCLES,
+          String.join(", ", moduleCycles.getModulesInCycles())
+        );
+      }
+      var reachability = new ModuleReachability(maps, moduleCycles);
       cycles
         .stream()
         .flatMap(x -> getTriples(x))
@@ -349,9 +899,7 @@ public class Main {
         .sorted(reversed(Comparator.comparing(x -> x.getValue().size())))
         .filter(x -> {
           var k = x.getKey();
-          return !maps.modulesByPath
-            .get(k.b())
-            .hasPathThroughModule(k.a(), k.c(), maps);
+          return !reachability.hasPathThrough(k.a(), k.b(), k.c());
         })
         .forEach(pair -> {
           var triple = pair.getKey();
@@ -374,46 +922,68 @@ public class Main {
             from,
             module.path
           );
-          for (var target : module
-            .getTransitiveForwardDepsOfModule(from, maps)
-            .toList()) {
+          for (var target : reachability.getReachedFrom(from, module.path)) {
             System.err.printf("    %s%n", target.label());
           }
           System.err.println();
 
           System.err.printf("  transitive \"-> %s\" in %s%n", to, module.path);
-          for (var target : module
-            .getTransitiveReverseDepsOnModule(to, maps)
-            .toList()) {
+          for (var target : reachability.getReaching(module.path, to)) {
             System.err.printf("    %s%n", target.label());
           }
           System.err.println();
         });
     }
 
-    var seenDeps = new HashSet<String>();
-    Set<String> cycleImpactedModules = cycles
+    var graph = maps.getGraph();
+    var seeds = moduleCycles
+      .getModulesInCycles()
       .stream()
-      .flatMap(list -> list.stream())
-      .distinct()
       .flatMap(x -> maps.modulesByPath.get(x).targets.stream())
-      .flatMap(x -> x.getReverseDepsWithExtraDepsRecursive(maps, seenDeps))
-      .map(x -> x.module())
-      .collect(Collectors.toSet());
+      .mapToInt(x -> graph.getTargetId(x))
+      .toArray();
+    return graph.getModules(graph.getReverseClosure(seeds));
+  }
 
-    // Deleting all existing pom generated pom.xml to ensure no removed folders have dangling poms inside them
-    Path pomXmlPath = workspaceDir.resolve("pom.xml");
-    deletePomFilesInSubmodules(pomXmlPath);
-    for (var module : maps.modulesByPath
+  /**
+   * Write the pom.xml files of the modules in scope and the root pom.xml, keeping the modules
+   * outside of the scope from the previous run.
+   */
+  static void writePomXmlFiles(
+    Maps maps,
+    Set<String> cycleImpactedModules,
+    TargetPatterns scope,
+    GeneratedFiles generatedFiles
+  ) throws IOException {
+    var existingModules = getExistingModules(scope, generatedFiles);
+    var modules = maps.modulesByPath
       .values()
       .stream()
       .filter(module -> !cycleImpactedModules.contains(module.toString())) // filter out modules that exist in cyclesDirectory
+      .filter(module -> scope.containsModule(module.path))
       .sorted(Comparator.comparing(x -> x.path))
-      .toList()) {
-      generatePomXmlFile(module, maps);
+      .toList();
+    var dependencyIndex = new ModuleDependencyIndex(maps, modules);
+    var isMultiModule = !maps.modulesByPath.containsKey("");
+    var parent = USE_PARENT_POM && isMultiModule
+      ? ParentPom.of(
+        modules,
+        dependencyIndex,
+        existingModules.isEmpty()
+          ? null
+          : readParentPom(workspaceDir().resolve("pom.xml"))
+      )
+      : null;
+    generatePomXmlFiles(modules, dependencyIndex, parent, generatedFiles);
+    for (var module : modules) {
+      generatedFiles.addModule(module.path, module.coordinate);
     }
+    existingModules.forEach((path, coordinate) -> {
+      generatedFiles.retain(workspaceDir().resolve(path).resolve("pom.xml"));
+      generatedFiles.addModule(path, coordinate);
+    });
 
-    if (maps.modulesByPath.containsKey("")) {
+    if (!isMultiModule) {
       // Single module project
       if (maps.modulesByPath.size() > 1) {
         throw new IllegalArgumentException(
@@ -423,45 +993,102 @@ public class Main {
     } else {
       // Multi module project
       writeRootPomXml(
-        maps.modulesByPath
-          .values()
-          .stream()
-          .filter(module -> !cycleImpactedModules.contains(module.toString()))
-          .collect(Collectors.toList())
+        Stream
+          .concat(
+            modules.stream().map(x -> x.path),
+            existingModules.keySet().stream()
+          )
+          .collect(Collectors.toList()),
+        parent,
+        generatedFiles
       );
     }
+    generatedFiles.finish();
     createMvnDir();
   }
 
-  private static void deletePomFilesInSubmodules(Path pomXmlPath) {
-    try {
-      // Call the method and get the submodule names
-      List<String> submodules = getSubmodulesFromPOM(pomXmlPath);
+  /**
+   * The pom.xml files that could have been generated by a run that didn't record a manifest,
+   * which are the pom.xml files of the submodules of the existing root pom.xml.
+   */
+  private static List<String> getLegacyPomFiles(Path pomXmlPath) {
+    return getSubmodulesFromPOM(pomXmlPath)
+      .stream()
+      .map(x -> workspaceDir().relativize(workspaceDir().resolve(x).resolve("pom.xml")).toString())
+      .toList();
+  }
 
-      // For each submodule, resolve its path, check if there is a pom.xml, and delete it if it exists
-      for (String submodule : submodules) {
-        Path submodulePath = workspaceDir.resolve(submodule);
-        Path submodulePomXmlPath = submodulePath.resolve("pom.xml");
+  private static List<String> getSubmodulesFromPOM(Path pomXmlPath) {
+    var doc = readPOM(pomXmlPath);
+    return doc == null ? new ArrayList<>() : getElementTexts(doc, "module");
+  }
 
-        if (Files.exists(submodulePomXmlPath)) {
-          System.err.println(
-            "Deleting " + workspaceDir.relativize(submodulePomXmlPath)
-          );
-          Files.delete(submodulePomXmlPath);
-        } else if (isDebug) {
-          System.out.println(
-            "There is no pom.xml in the directory: " + submodulePath
-          );
+  /**
+   * What the previous root pom.xml held for the modules, or null if there isn't one.
+   */
+  private static ParentPom readParentPom(Path pomXmlPath) {
+    var doc = readPOM(pomXmlPath);
+    if (doc == null) {
+      return null;
+    }
+    // The root pom.xml has no dependencies of its own, only managed ones
+    var managedDependencies = new LinkedHashSet<MavenCoordinate>();
+    var dependencies = doc.getElementsByTagName("dependency");
+    for (int i = 0; i < dependencies.getLength(); i++) {
+      var dependency = (Element) dependencies.item(i);
+      var classifier = getElementTexts(dependency, "classifier");
+      managedDependencies.add(
+        new MavenCoordinate(
+          getElementTexts(dependency, "groupId").get(0),
+          getElementTexts(dependency, "artifactId").get(0),
+          getElementTexts(dependency, "type").get(0),
+          classifier.isEmpty() ? null : classifier.get(0),
+          getElementTexts(dependency, "version").get(0)
+        )
+      );
+    }
+    var properties = new TreeMap<String, String>();
+    var propertiesElements = doc.getElementsByTagName("properties");
+    if (propertiesElements.getLength() > 0) {
+      var children = propertiesElements.item(0).getChildNodes();
+      for (int i = 0; i < children.getLength(); i++) {
+        if (children.item(i) instanceof Element property) {
+          properties.put(property.getTagName(), property.getTextContent());
         }
       }
-    } catch (IOException e) {
-      throw new RuntimeException(e);
     }
+    return new ParentPom(
+      getElementTexts(doc, "url"),
+      properties,
+      managedDependencies
+    );
   }
 
-  private static List<String> getSubmodulesFromPOM(Path pomXmlPath) {
-    List<String> submodules = new ArrayList<>();
+  /**
+   * The text content of the elements with the given tag under the node.
+   */
+  private static List<String> getElementTexts(Node node, String tagName) {
+    List<String> result = new ArrayList<>();
+
+    // Extract the tags
+    NodeList elements = node instanceof Document doc
+      ? doc.getElementsByTagName(tagName)
+      : ((Element) node).getElementsByTagName(tagName);
+
+    // Go through each tag and add its text content e.g. the submodule to the list
+    for (int i = 0; i < elements.getLength(); i++) {
+      Node elementNode = elements.item(i);
+      if (elementNode.getNodeType() == Node.ELEMENT_NODE) {
+        result.add(elementNode.getTextContent());
+      }
+    }
+    return result;
+  }
 
+  /**
+   * Read a pom.xml as a document, or null if it doesn't exist.
+   */
+  private static Document readPOM(Path pomXmlPath) {
     try {
       // Convert the provided path to a real path
       pomXmlPath = pomXmlPath.toRealPath();
@@ -469,68 +1096,64 @@ public class Main {
       // Read the pom.xml as a document
       DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
       DocumentBuilder builder = factory.newDocumentBuilder();
-      Document doc = builder.parse(pomXmlPath.toFile());
-
-      // Extract <module> tags
-      NodeList modules = doc.getElementsByTagName("module");
-
-      // Go through each module and add its text content i.e. the submodule to the list
-      for (int i = 0; i < modules.getLength(); i++) {
-        Node moduleNode = modules.item(i);
-        if (moduleNode.getNodeType() == Node.ELEMENT_NODE) {
-          Element moduleElement = (Element) moduleNode;
-          submodules.add(moduleElement.getTextContent());
-        }
-      }
+      return builder.parse(pomXmlPath.toFile());
     } catch (NoSuchFileException e) {
       System.out.println("No pom.xml file found at the provided path.");
+      return null;
     } catch (IOException | SAXException | ParserConfigurationException e) {
       throw new RuntimeException(
         "An error occurred while processing the pom.xml file.",
         e
       );
     }
-
-    return submodules;
   }
 
   private static void createMvnDir() throws IOException {
     // Maven uses this dir to determine the root of the multimodule project
-    var mvnDir = workspaceDir.resolve(".mvn");
+    var mvnDir = workspaceDir().resolve(".mvn");
     if (!Files.exists(mvnDir)) {
       Files.createDirectory(mvnDir);
     }
   }
 
-  private static void writeRootPomXml(Collection<MavenModule> modules) {
+  /**
+   * @param parent what the modules inherit from the root pom.xml, or null if they are
+   *               standalone and it only lists them
+   */
+  private static void writeRootPomXml(
+    Collection<String> modulePaths,
+    ParentPom parent,
+    GeneratedFiles generatedFiles
+  ) {
     var document = new XmlGenerator();
-    document.createProject(
-      new MavenCoordinate(
-        "bazel.generated",
-        "canva",
-        "pom",
-        null,
-        "1.0-SNAPSHOT"
-      ),
-      document.element(
-        "modules",
-        modules
-          .stream()
-          .sorted(Comparator.comparing(x -> x.path))
-          .map(x -> document.element("module", x.path))
-      )
-    );
-    document.write(workspaceDir.resolve("pom.xml"));
+    if (parent != null) {
+      document.createParentProject(parent, modulePaths.stream().sorted());
+    } else {
+      document.createProject(
+        ParentPom.COORDINATE,
+        document.element(
+          "modules",
+          modulePaths
+            .stream()
+            .sorted()
+            .map(x -> document.element("module", x))
+        )
+      );
+    }
+    generatedFiles.write(workspaceDir().resolve("pom.xml"), document.toBytes());
   }
 
-  public static <T> Comparator<T> reversed(Comparator<T> c) {
-    return c.reversed();
+  public static <T> List<T> concat(List<T> a, List<T> b) {
+    if (b.isEmpty()) {
+      return a;
+    } else if (a.isEmpty()) {
+      return b;
+    }
+    return Stream.concat(a.stream(), b.stream()).toList();
   }
 
-  public static <T> List<T> listAdd(List<T> xs, T x) {
-    var xs2 = new ArrayList<>(xs);
-    xs2.add(x);
-    return xs2;
+  public static <T> Comparator<T> reversed(Comparator<T> c) {
+    return c.reversed();
   }
 
   public static <T> Stream<Triple<T, T, T>> getTriples(List<T> list) {
@@ -600,10 +1223,61 @@ public class Main {
     return args;
   }
 
-  public static void generatePomXmlFile(MavenModule module, Maps maps) {
+  /**
+   * Render the pom.xml files of the modules on a thread per core, and write them on virtual
+   * threads. Modules are logged in order as soon as they and every module before them are
+   * done, and if any fail the failure of the first of them in order is thrown.
+   */
+  private static void generatePomXmlFiles(
+    List<MavenModule> modules,
+    ModuleDependencyIndex dependencyIndex,
+    ParentPom parent,
+    GeneratedFiles generatedFiles
+  ) {
+    try (
+      var renderers = Executors.newFixedThreadPool(RENDER_THREADS);
+      var writers = Executors.newVirtualThreadPerTaskExecutor()
+    ) {
+      var results = modules
+        .stream()
+        .map(module -> {
+          var path = workspaceDir().resolve(module.path).resolve("pom.xml");
+          return CompletableFuture
+            .supplyAsync(
+              () -> renderPomXml(module, dependencyIndex.get(module), parent),
+              renderers
+            )
+            .thenApplyAsync(
+              content -> generatedFiles.writeIfChanged(path, content) ? path : null,
+              writers
+            );
+        })
+        .toList();
+      for (var result : results) {
+        Path written;
+        try {
+          written = result.get();
+        } catch (InterruptedException | ExecutionException e) {
+          renderers.shutdownNow();
+          writers.shutdownNow();
+          var cause = e instanceof ExecutionException ? e.getCause() : e;
+          throw cause instanceof RuntimeException x ? x : new RuntimeException(cause);
+        }
+        if (written != null) {
+          generatedFiles.logWrite(written);
+        }
+      }
+    }
+  }
+
+  private static byte[] renderPomXml(
+    MavenModule module,
+    ModuleDependencyIndex.ModuleDependencies deps,
+    ParentPom parent
+  ) {
     var generator = new XmlGenerator();
-    generator.createProject(module, maps);
-    generator.write(workspaceDir.resolve(module.path).resolve("pom.xml"));
+    generator.createProject(module, deps, parent);
+    return generator.toBytes();
   }
 
   public static final Pattern javaPathRegex = Pattern.compile(
@@ -613,6 +1287,12 @@ public class Main {
     "^(bazel-out/[^/]*/bin/|)(.*?)$"
   );
 
+  /**
+   * Shared by every parse so each directory's package is only read once per run (or until
+   * the daemon sees it change).
+   */
+  public static final JavaPackageIndex javaPackageIndex = new JavaPackageIndex();
+
   static class InvalidPathException extends Exception {
 
     public InvalidPathException(String message) {
@@ -621,6 +1301,15 @@ public class Main {
   }
 
   public static SourcePath parseJavaPath(String path)
+    throws InvalidPathException {
+    return parseJavaPath(path, null);
+  }
+
+  /**
+   * javaPackage is the package of the file if it is already known, otherwise it is read from
+   * the file.
+   */
+  public static SourcePath parseJavaPath(String path, String javaPackage)
     throws InvalidPathException {
     var matcher = javaPathRegex.matcher(path);
     if (!matcher.matches()) {
@@ -630,7 +1319,9 @@ public class Main {
     var prefix = matcher.group(1);
     var directory = matcher.group(2);
     var fileName = matcher.group(3);
-    var packagePath = getJavaPackage(path).replace(".", "/");
+    var packagePath = (
+      javaPackage != null ? javaPackage : javaPackageIndex.getPackage(path)
+    ).replace(".", "/");
 
     var sourceRoot = Stream
       .of(directory, directory.replace("/generated/", "/"))
@@ -690,21 +1381,11 @@ public class Main {
     );
   }
 
+  /**
+   * Read the package of a single .java file, bypassing javaPackageIndex.
+   */
   public static String getJavaPackage(String path) throws InvalidPathException {
-    try (var reader = Files.newBufferedReader(toAbsolutePath(path))) {
-      var line = reader.readLine();
-      if (line == null) {
-        throw new InvalidPathException("File is empty");
-      }
-      do {
-        if (line.startsWith("package ") && line.endsWith(";")) {
-          return line.substring(8, line.length() - 1);
-        }
-        line = reader.readLine();
-      } while (line != null);
-      throw new InvalidPathException("No package line found");
-    } catch (IOException e) {
-      throw new RuntimeException(e);
-    }
+    return JavaPackageIndex.readPackage(toAbsolutePath(path));
   }
+
 }
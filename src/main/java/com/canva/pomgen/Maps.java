@@ -2,11 +2,18 @@
 
 package com.canva.pomgen;
 
+import java.nio.file.Path;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
@@ -15,39 +22,46 @@ class Maps {
 
   public final Map<String, AbstractParsedTarget> mapOutputsToTarget = new HashMap<>();
   public final Map<String, MavenModule> modulesByPath = new HashMap<>();
-  public final Map<MavenCoordinate, List<String>> systemImports;
-  public final Map<String, List<JavaCompile>> reverseDepsWithExtraDeps = new HashMap<>();
+  public final Map<MavenCoordinate, List<String>> systemImports = new HashMap<>();
 
-  Maps(List<AbstractParsedTarget> targets) {
+  private final Map<String, MavenCoordinate> existingModules;
+  private final MavenLockFiles lockFiles;
+  private final Map<Path, JavaCompile> javaTargets = new LinkedHashMap<>();
+  private ExtraDepsClosure extraDepsClosure;
+  private DependencyGraph graph;
+
+  /**
+   * existingModules are the coordinates of modules generated by a previous run that aren't
+   * being regenerated, so they keep those coordinates even if we only loaded some of their
+   * targets, and other modules are made unique against them.
+   * <p>
+   * The artifacts of lockFiles provide the jars that no loaded target does.
+   */
+  Maps(
+    List<AbstractParsedTarget> targets,
+    Map<String, MavenCoordinate> existingModules,
+    MavenLockFiles lockFiles
+  ) {
+    this.existingModules = existingModules;
+    this.lockFiles = lockFiles;
+
+    for (var artifact : lockFiles.getArtifacts()) {
+      addOutputs(artifact);
+    }
     for (var target : targets) {
-      // target.getOutputs() can contain duplicates!
-      for (var output : new HashSet<>(target.getOutputs())) {
-        var existing = mapOutputsToTarget.get(output);
-        if (existing != null) {
-          System.err.printf(
-            "File %s is provided by both %s and %s%n",
-            output,
-            target.getJsonPath(),
-            existing.getJsonPath()
-          );
-        }
-        mapOutputsToTarget.put(output, target);
-      }
+      addOutputs(target);
+    }
+    for (var target : targets) {
+      addLockFileJars(target);
     }
 
-    this.systemImports =
-      targets
-        .stream()
-        .flatMap(Main.isInstance(ImportExternalJar.class))
-        .collect(
-          Collectors.toMap(
-            x -> x.coordinate(),
-            x -> x.jars(),
-            // The same coordinate could appear multiple times if a target is
-            // depended on through multiple configurations. Just pick any one.
-            (a, b) -> a
-          )
-        );
+    for (var target : targets) {
+      if (target instanceof ImportExternalJar x) {
+        // The same coordinate could appear multiple times if a target is
+        // depended on through multiple configurations. Just pick any one.
+        systemImports.putIfAbsent(x.coordinate(), x.jars());
+      }
+    }
 
     targets
       .stream()
@@ -57,37 +71,231 @@ class Maps {
         modulesByPath.put(k, new MavenModule(k, v));
       });
 
-    modulesByPath
-      .values()
-      .stream()
-      .collect(Collectors.groupingBy(x -> x.coordinate))
-      .values()
+    assignCoordinates();
+
+    for (var target : targets) {
+      if (target instanceof JavaCompile java) {
+        javaTargets.put(java.jsonPath(), java);
+      }
+    }
+    buildGraph();
+  }
+
+  private void addOutputs(AbstractParsedTarget target) {
+    // target.getOutputs() can contain duplicates!
+    for (var output : new HashSet<>(target.getOutputs())) {
+      var existing = mapOutputsToTarget.get(output);
+      if (existing != null) {
+        System.err.printf(
+          "File %s is provided by both %s and %s%n",
+          output,
+          target.getJsonPath(),
+          existing.getJsonPath()
+        );
+      }
+      mapOutputsToTarget.put(output, target);
+    }
+  }
+
+  /**
+   * Map the jars the target depends on that no target provides to the lock file artifacts
+   * they were downloaded for, if any, and return the jars that were mapped.
+   */
+  private List<String> addLockFileJars(AbstractParsedTarget target) {
+    var result = new ArrayList<String>();
+    for (var type : DepType.values()) {
+      var deps = target instanceof JavaCompile java
+        ? Main.concat(java.getDeps(type), java.getExtraDeps(type))
+        : target.getExtraDeps(type);
+      for (var dep : deps) {
+        if (!mapOutputsToTarget.containsKey(dep)) {
+          var artifact = lockFiles.find(dep);
+          if (artifact != null) {
+            mapOutputsToTarget.put(dep, artifact);
+            result.add(dep);
+          }
+        }
+      }
+    }
+    return result;
+  }
+
+  private void assignCoordinates() {
+    var newModules = new ArrayList<MavenModule>();
+    for (var module : modulesByPath.values()) {
+      var existing = existingModules.get(module.path);
+      if (existing != null) {
+        module.coordinate = existing;
+      } else {
+        module.resetCoordinate();
+        newModules.add(module);
+      }
+    }
+
+    var coordinateCounts = Stream
+      .concat(
+        newModules.stream().map(x -> x.coordinate),
+        existingModules.values().stream()
+      )
+      .collect(Collectors.groupingBy(x -> x, Collectors.counting()));
+    newModules
       .stream()
-      .filter(x -> x.size() > 1)
-      .flatMap(x -> x.stream())
+      .filter(x -> coordinateCounts.get(x.coordinate) > 1)
       .forEach(x -> x.makeCoordinateUnique());
+  }
 
-    for (var target : targets) {
+  private void buildGraph() {
+    extraDepsClosure = new ExtraDepsClosure(mapOutputsToTarget);
+    graph =
+      new DependencyGraph(
+        List.copyOf(javaTargets.values()),
+        mapOutputsToTarget,
+        extraDepsClosure
+      );
+  }
+
+  /**
+   * Bring the extra deps closure and the graph up to date after the targets providing the
+   * given outputs changed, recomputing only what depends on them.
+   */
+  private void updateGraph(
+    Set<String> changedOutputs,
+    Set<AbstractParsedTarget> changedTargets
+  ) {
+    var staleOutputs = extraDepsClosure.update(changedOutputs);
+    graph =
+      graph.update(
+        List.copyOf(javaTargets.values()),
+        mapOutputsToTarget,
+        extraDepsClosure,
+        staleOutputs,
+        changedTargets
+      );
+  }
+
+  public DependencyGraph getGraph() {
+    return graph;
+  }
+
+  /**
+   * Replace the removed targets with the added ones in place, and return the paths of the
+   * modules whose pom.xml could be different as a result.
+   * <p>
+   * Every JavaCompile whose dependencies (including extra deps) reach a removed or added
+   * target must itself be removed and added again, so that its module is included in the
+   * result.
+   */
+  public Set<String> update(
+    Collection<AbstractParsedTarget> removed,
+    Collection<AbstractParsedTarget> added
+  ) {
+    var changedModules = new HashSet<String>();
+    // The target each output touched here was provided by before, or null
+    var previousTargets = new HashMap<String, AbstractParsedTarget>();
+
+    for (var target : removed) {
+      if (target instanceof JavaCompile java) {
+        javaTargets.remove(java.jsonPath(), java);
+        changedModules.add(java.module());
+      }
+      for (var output : target.getOutputs()) {
+        if (!previousTargets.containsKey(output)) {
+          previousTargets.put(output, mapOutputsToTarget.get(output));
+        }
+        mapOutputsToTarget.remove(output, target);
+      }
+      if (target instanceof ImportExternalJar x) {
+        systemImports.remove(x.coordinate(), x.jars());
+      }
+    }
+
+    for (var target : added) {
+      for (var output : target.getOutputs()) {
+        if (!previousTargets.containsKey(output)) {
+          previousTargets.put(output, mapOutputsToTarget.get(output));
+        }
+      }
+      addOutputs(target);
+    }
+    for (var target : added) {
+      for (var jar : addLockFileJars(target)) {
+        if (!previousTargets.containsKey(jar)) {
+          previousTargets.put(jar, null);
+        }
+      }
+      if (target instanceof ImportExternalJar x) {
+        systemImports.putIfAbsent(x.coordinate(), x.jars());
+      }
       if (target instanceof JavaCompile java) {
-        java
-          .getDepsWithExtraDeps(this)
-          .forEach(dep -> {
-            reverseDepsWithExtraDeps
-              .computeIfAbsent(dep, i -> new ArrayList<>())
-              .add(java);
-          });
+        javaTargets.put(java.jsonPath(), java);
+        changedModules.add(java.module());
       }
     }
+
+    var removedPaths = removed
+      .stream()
+      .map(x -> x.getJsonPath())
+      .collect(Collectors.toSet());
+    var addedByModule = added
+      .stream()
+      .flatMap(Main.isInstance(JavaCompile.class))
+      .collect(Collectors.groupingBy(x -> x.module()));
+    for (var path : changedModules) {
+      var targets = new ArrayList<JavaCompile>();
+      var existing = modulesByPath.get(path);
+      if (existing != null) {
+        existing.targets
+          .stream()
+          .filter(x -> !removedPaths.contains(x.jsonPath()))
+          .forEach(targets::add);
+      }
+      targets.addAll(addedByModule.getOrDefault(path, List.of()));
+      if (targets.isEmpty()) {
+        modulesByPath.remove(path);
+      } else {
+        targets.sort(Comparator.comparing(x -> x.jsonPath()));
+        modulesByPath.put(path, new MavenModule(path, targets));
+      }
+    }
+
+    var oldCoordinates = new HashMap<String, MavenCoordinate>();
+    modulesByPath.forEach((k, v) -> oldCoordinates.put(k, v.coordinate));
+    assignCoordinates();
+
+    var changedOutputs = new HashSet<String>();
+    previousTargets.forEach((k, v) -> {
+      if (mapOutputsToTarget.get(k) != v) {
+        changedOutputs.add(k);
+      }
+    });
+    var changedTargets = Collections.<AbstractParsedTarget>newSetFromMap(
+      new IdentityHashMap<>()
+    );
+    changedTargets.addAll(added);
+    updateGraph(changedOutputs, changedTargets);
+
+    // Modules whose coordinate changed because of a new or removed clash change the pom.xml
+    // of every module that depends on them as well.
+    for (var module : List.copyOf(modulesByPath.values())) {
+      var oldCoordinate = oldCoordinates.get(module.path);
+      if (oldCoordinate == null || oldCoordinate.equals(module.coordinate)) {
+        continue;
+      }
+      changedModules.add(module.path);
+      for (var target : module.targets) {
+        target
+          .getReverseDepsWithExtraDeps(this)
+          .forEach(x -> changedModules.add(x.module()));
+      }
+    }
+
+    return changedModules;
   }
 
+  /**
+   * The dep followed by the transitive closure of its extra deps.
+   */
   public Stream<String> flattenExtraDeps(String dep, DepType type) {
-    return Stream.concat(
-      Stream.of(dep),
-      mapOutputsToTarget
-        .get(dep)
-        .getExtraDeps(type)
-        .stream()
-        .flatMap(x -> flattenExtraDeps(x, type))
-    );
+    return extraDepsClosure.flatten(dep, type);
   }
 }
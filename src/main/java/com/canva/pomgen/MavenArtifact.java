@@ -9,6 +9,7 @@ import java.util.Optional;
 public record MavenArtifact(
   Path jsonPath,
   List<String> outputs,
+  List<String> exports,
   MavenCoordinate coords,
   String repo,
   List<String> compileDeps,
@@ -37,11 +38,15 @@ public record MavenArtifact(
   public List<String> getExtraDeps(DepType type) {
     if (USE_BAZEL_DEPENDENCY_RESOLUTION) {
       return switch (type) {
-        case Compile -> compileDeps;
+        case Compile -> Main.concat(compileDeps, exports);
         case Runtime -> runtimeDeps;
       };
     } else {
-      return List.of();
+      // Maven doesn't know about Bazel exports
+      return switch (type) {
+        case Compile -> exports;
+        case Runtime -> List.of();
+      };
     }
   }
 
@@ -0,0 +1,241 @@
+// Copyright 2023 Canva Inc. All Rights Reserved.
+
+package com.canva.pomgen;
+
+import static com.canva.pomgen.JsonTargetInfoReader.expect;
+import static com.canva.pomgen.JsonTargetInfoReader.readString;
+import static com.canva.pomgen.JsonTargetInfoReader.readStrings;
+
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.util.ByteBufferBackedInputStream;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The Maven artifacts pinned in rules_jvm_external lock files (maven_install.json), so the
+ * aspect doesn't have to write a .json file for every jvm_import rules_jvm_external generates
+ * for them.
+ * <p>
+ * Each artifact becomes a MavenArtifact whose output is an ID made from the lock file and
+ * the artifact's key, and whose extra deps are the IDs of the artifacts the lock file says it
+ * depends on, so ExtraDepsClosure works out the dependency closure as it did from the .json
+ * files. The jars targets actually depend on are matched to artifacts by path, since they
+ * always end in the artifact's path in its Maven repository, only with "processed_" or
+ * "header_" in front of the file name for the jars jvm_import derives from the downloaded one.
+ * <p>
+ * Only version 2 lock files are supported. Each is parsed once with a JsonParser straight
+ * from the memory mapped file.
+ */
+@SuppressWarnings("Convert2MethodRef")
+final class MavenLockFiles {
+
+  public static final MavenLockFiles EMPTY = new MavenLockFiles();
+
+  private static final List<String> JAR_PREFIXES = List.of("processed_", "header_");
+
+  private record Pinned(String version, List<String> classifiers) {}
+
+  private interface FieldReader {
+    void read(String field) throws IOException;
+  }
+
+  private final List<MavenArtifact> artifacts = new ArrayList<>();
+
+  /**
+   * The artifacts by the file name of their jar.
+   */
+  private final Map<String, List<MavenArtifact>> byFileName = new HashMap<>();
+
+  private MavenLockFiles() {}
+
+  public static MavenLockFiles load(List<Path> paths) {
+    var result = new MavenLockFiles();
+    for (var path : paths) {
+      try {
+        result.read(path);
+      } catch (IOException e) {
+        throw new RuntimeException("Failed to read lock file " + path, e);
+      }
+    }
+    return result;
+  }
+
+  public List<MavenArtifact> getArtifacts() {
+    return artifacts;
+  }
+
+  /**
+   * The artifact the exec root relative jar was downloaded for, or null if there isn't one.
+   */
+  public MavenArtifact find(String path) {
+    var slash = path.lastIndexOf('/');
+    var fileName = path.substring(slash + 1);
+    var directory = "/" + path.substring(0, slash + 1);
+    var result = find(directory, fileName);
+    for (var prefix : JAR_PREFIXES) {
+      if (result == null && fileName.startsWith(prefix)) {
+        result = find(directory, fileName.substring(prefix.length()));
+      }
+    }
+    return result;
+  }
+
+  private MavenArtifact find(String directory, String fileName) {
+    for (var artifact : byFileName.getOrDefault(fileName, List.of())) {
+      var urlPath = artifact.coords().toUrlPath();
+      if (directory.endsWith("/" + urlPath.substring(0, urlPath.lastIndexOf('/') + 1))) {
+        return artifact;
+      }
+    }
+    return null;
+  }
+
+  private void read(Path path) throws IOException {
+    String version = null;
+    var pinned = new LinkedHashMap<String, Pinned>();
+    var dependencies = new HashMap<String, List<String>>();
+    var repositories = new HashMap<String, String>();
+
+    try (var channel = FileChannel.open(path, StandardOpenOption.READ)) {
+      var buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+      try (
+        var parser = Main.mapper
+          .getFactory()
+          .createParser(new ByteBufferBackedInputStream(buffer))
+      ) {
+        expect(parser, parser.nextToken(), JsonToken.START_OBJECT);
+        String field;
+        while ((field = parser.nextFieldName()) != null) {
+          switch (field) {
+            case "version" -> version = readString(parser);
+            case "artifacts" -> readObject(
+              parser,
+              x -> pinned.put(x, readPinned(parser))
+            );
+            case "dependencies" -> readObject(
+              parser,
+              x -> dependencies.put(x, readStrings(parser))
+            );
+            case "repositories" -> readObject(
+              parser,
+              url -> {
+                for (var key : readStrings(parser)) {
+                  repositories.putIfAbsent(key, url);
+                }
+              }
+            );
+            default -> {
+              parser.nextToken();
+              parser.skipChildren();
+            }
+          }
+        }
+      }
+    }
+
+    if (!"2".equals(version)) {
+      throw new IOException(
+        "Unsupported lock file version %s, only version 2 is supported".formatted(
+            version
+          )
+      );
+    }
+
+    pinned.forEach((key, value) -> {
+      var parts = key.split(":");
+      var packaging = parts.length > 2 ? parts[2] : "jar";
+      for (var shasum : value.classifiers()) {
+        // The jar without a classifier has the packaging as its key
+        var classifier = shasum.equals(packaging) || shasum.equals("jar")
+          ? (parts.length > 3 ? parts[3] : null)
+          : shasum;
+        var coords = new MavenCoordinate(
+          parts[0],
+          parts[1],
+          packaging,
+          classifier,
+          value.version()
+        );
+        var artifactKey = classifier == null
+          ? key
+          : "%s:%s:%s:%s".formatted(parts[0], parts[1], packaging, classifier);
+
+        var repo = repositories.getOrDefault(artifactKey, repositories.get(key));
+        if (repo == null) {
+          throw new IllegalArgumentException(
+            "No repository for %s in %s".formatted(artifactKey, path)
+          );
+        }
+        var deps = dependencies
+          .getOrDefault(artifactKey, dependencies.getOrDefault(key, List.of()))
+          .stream()
+          .map(x -> getId(path, x))
+          .toList();
+
+        var artifact = new MavenArtifact(
+          path,
+          List.of(getId(path, artifactKey)),
+          List.of(),
+          coords,
+          Main.removeSuffix(repo, "/").orElse(repo),
+          deps,
+          deps
+        );
+        artifacts.add(artifact);
+        var urlPath = coords.toUrlPath();
+        byFileName
+          .computeIfAbsent(
+            urlPath.substring(urlPath.lastIndexOf('/') + 1),
+            x -> new ArrayList<>()
+          )
+          .add(artifact);
+      }
+    });
+  }
+
+  private static String getId(Path path, String key) {
+    return path + "#" + key;
+  }
+
+  private static void readObject(JsonParser parser, FieldReader reader)
+    throws IOException {
+    expect(parser, parser.nextToken(), JsonToken.START_OBJECT);
+    String field;
+    while ((field = parser.nextFieldName()) != null) {
+      reader.read(field);
+    }
+  }
+
+  private static Pinned readPinned(JsonParser parser) throws IOException {
+    String version = null;
+    var classifiers = new ArrayList<String>();
+    expect(parser, parser.nextToken(), JsonToken.START_OBJECT);
+    String field;
+    while ((field = parser.nextFieldName()) != null) {
+      switch (field) {
+        case "version" -> version = readString(parser);
+        case "shasums" -> readObject(
+          parser,
+          x -> {
+            classifiers.add(x);
+            parser.nextToken();
+          }
+        );
+        default -> {
+          parser.nextToken();
+          parser.skipChildren();
+        }
+      }
+    }
+    return new Pinned(version, classifiers);
+  }
+}
@@ -6,6 +6,7 @@ import static com.canva.pomgen.Main.toAbsolutePath;
 
 import java.nio.file.Path;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.EnumSet;
 import java.util.HashMap;
 import java.util.HashSet;
@@ -59,6 +60,7 @@ final class MavenModule {
   public final String pathPrefix;
   public final List<JavaCompile> targets;
   public MavenCoordinate coordinate;
+  private final MavenCoordinate defaultCoordinate;
   public final Set<SourceRoot> testSourceRoots = new HashSet<>();
   public final Set<SourceRoot> testResourceRoots = new HashSet<>();
   public final Set<SourceRoot> mainSourceRoots = new HashSet<>();
@@ -80,10 +82,11 @@ final class MavenModule {
       .toList();
 
     var parts = path.split(Pattern.quote("/"));
-    this.coordinate =
+    this.defaultCoordinate =
       coordinates.size() == 1
         ? coordinates.get(0)
         : MavenCoordinate.createFromPath(parts[parts.length - 1], null);
+    this.coordinate = defaultCoordinate;
 
     for (var target : targets) {
       if (!TEST_ROOTS_ENABLED) {
@@ -123,37 +126,8 @@ final class MavenModule {
     coordinate = MavenCoordinate.createFromPath(path, null);
   }
 
-  public static Stream<List<String>> findCycles(
-    Maps maps,
-    List<String> path,
-    Set<String> visited,
-    Set<String> exclude
-  ) {
-    var a = path.get(0);
-    var b = path.get(path.size() - 1);
-
-    var deps = maps.modulesByPath
-      .get(b)
-      .targets.stream()
-      .flatMap(x -> x.getDepsWithExtraDepsJavaCompile(maps))
-      .map(x -> x.module())
-      .filter(x -> !b.equals(x))
-      .collect(Collectors.toSet());
-
-    var recurse = deps
-      .stream()
-      .filter(x -> !exclude.contains(x) && visited.add(x))
-      .flatMap(x -> findCycles(maps, Main.listAdd(path, x), visited, exclude));
-
-    if (deps.contains(a)) {
-      return Stream.concat(Stream.of(path), recurse);
-    } else {
-      return recurse;
-    }
-  }
-
-  public Stream<List<String>> findCycles(Maps maps, Set<String> exclude) {
-    return findCycles(maps, List.of(path), new HashSet<>(), exclude);
+  public void resetCoordinate() {
+    coordinate = defaultCoordinate;
   }
 
   public boolean isTargetMain(JavaCompile target) {
@@ -170,61 +144,79 @@ final class MavenModule {
     );
   }
 
-  public Map<String, EnumSet<Scope>> getDeps(Maps maps) {
-    var result = new HashMap<String, EnumSet<Scope>>();
+  /**
+   * The outputs this module depends on, as output IDs in the order they were first found,
+   * and for each the Scopes it is needed in as a mask.
+   */
+  record DepMasks(int[] outputs, byte[] masks) {}
+
+  DepMasks getDepMasks(DependencyGraph graph) {
+    var masks = new byte[graph.numOutputs()];
+    var outputs = new int[16];
+    var size = 0;
     for (var target : targets) {
       // A target can have sources spread across main and test source roots
       // simultaneously.
-      var compile = EnumSet.noneOf(Scope.class);
-      var runtime = EnumSet.noneOf(Scope.class);
-      if (isTargetMain(target)) {
-        compile.add(Scope.MainCompile);
-        runtime.add(Scope.MainRuntime);
-      }
-      if (isTargetTest(target)) {
-        compile.add(Scope.TestCompile);
-        runtime.add(Scope.TestRuntime);
+      var isMain = isTargetMain(target);
+      var isTest = isTargetTest(target);
+      var compile = (byte) (
+        (isMain ? Scope.MainCompile.mask() : 0) |
+        (isTest ? Scope.TestCompile.mask() : 0)
+      );
+      var runtime = (byte) (
+        (isMain ? Scope.MainRuntime.mask() : 0) |
+        (isTest ? Scope.TestRuntime.mask() : 0)
+      );
+
+      var id = graph.getTargetId(target);
+      for (var type : DepType.values()) {
+        var mask = type == DepType.Compile ? compile : runtime;
+        for (var it = graph.getDepOutputIds(id, type).iterator(); it.hasNext();) {
+          var output = it.nextInt();
+          // Bit 7 isn't a Scope, it marks outputs already in the list
+          if (masks[output] == 0) {
+            if (size == outputs.length) {
+              outputs = Arrays.copyOf(outputs, size * 2);
+            }
+            outputs[size++] = output;
+            masks[output] = (byte) 0x80;
+          }
+          masks[output] |= mask;
+        }
       }
+    }
 
-      target
-        .getDepsWithExtraDeps(DepType.Compile, maps)
-        .forEach(dep -> {
-          result
-            .computeIfAbsent(dep, i -> EnumSet.noneOf(Scope.class))
-            .addAll(compile);
-        });
-
-      target
-        .getDepsWithExtraDeps(DepType.Runtime, maps)
-        .forEach(dep -> {
-          result
-            .computeIfAbsent(dep, i -> EnumSet.noneOf(Scope.class))
-            .addAll(runtime);
-        });
+    var resultMasks = new byte[size];
+    for (var i = 0; i < size; i++) {
+      resultMasks[i] = (byte) (masks[outputs[i]] & 0x7f);
     }
-    return result;
+    return new DepMasks(Arrays.copyOf(outputs, size), resultMasks);
   }
 
-  public Map<MavenCoordinate, EnumSet<Scope>> getDepsOnMavenCoords(Maps maps) {
-    var result = new HashMap<MavenCoordinate, EnumSet<Scope>>();
-    // Map the keys to maven coordinates
-    getDeps(maps)
-      .forEach((k, v) -> {
-        var coord = maps.mapOutputsToTarget.get(k).getCoordinate(maps);
-        result
-          .computeIfAbsent(coord, i -> EnumSet.noneOf(Scope.class))
-          .addAll(v);
-      });
+  public Map<MavenCoordinate, EnumSet<Scope>> getDepsOnMavenCoords(
+    Maps maps,
+    DepMasks deps
+  ) {
+    var graph = maps.getGraph();
+    // Map the outputs to maven coordinates
+    var masks = new HashMap<MavenCoordinate, Byte>();
+    for (var i = 0; i < deps.outputs().length; i++) {
+      var coord = getOutputTarget(graph, deps.outputs()[i]).getCoordinate(maps);
+      masks.merge(coord, deps.masks()[i], (a, b) -> (byte) (a | b));
+    }
     // Remove a dependency on ourselves
-    result.remove(coordinate);
+    masks.remove(coordinate);
+    var result = new HashMap<MavenCoordinate, EnumSet<Scope>>();
+    masks.forEach((k, v) -> result.put(k, Scope.fromMask(v)));
     return result;
   }
 
-  public List<String> getMavenRepositories(Maps maps) {
-    return getDeps(maps)
-      .keySet()
-      .stream()
-      .flatMap(x -> maps.mapOutputsToTarget.get(x).getRepo().stream())
+  public List<String> getMavenRepositories(Maps maps, DepMasks deps) {
+    var graph = maps.getGraph();
+    return Arrays
+      .stream(deps.outputs())
+      .mapToObj(x -> getOutputTarget(graph, x))
+      .flatMap(x -> x.getRepo().stream())
       // Put most frequently occurring repos first
       .collect(Collectors.groupingBy(x -> x, Collectors.counting()))
       .entrySet()
@@ -234,6 +226,19 @@ final class MavenModule {
       .toList();
   }
 
+  private AbstractParsedTarget getOutputTarget(DependencyGraph graph, int output) {
+    var target = graph.getOutputTarget(output);
+    if (target == null) {
+      throw new IllegalArgumentException(
+        "Module %s depends on %s, which no target provides. If it is the jar of a Maven artifact, it should be pinned in one of CANVA_POMGEN_MAVEN_LOCK_FILES.".formatted(
+            path,
+            graph.getOutput(output)
+          )
+      );
+    }
+    return target;
+  }
+
   public Stream<JavaCompile> getTestTargets() {
     return targets
       .stream()
@@ -274,8 +279,11 @@ final class MavenModule {
       .map(x -> x.getSourceRootPathFromModuleRoot());
   }
 
-  public List<MavenPomDependency> dependencies(Maps maps) {
-    return getDepsOnMavenCoords(maps)
+  public List<MavenPomDependency> dependencies(
+    Maps maps,
+    Map<MavenCoordinate, EnumSet<Scope>> depsOnMavenCoords
+  ) {
+    return depsOnMavenCoords
       .entrySet()
       .stream()
       .flatMap(x -> {
@@ -345,40 +353,4 @@ final class MavenModule {
       Map.entry("project.reporting.outputEncoding", "UTF-8")
     );
   }
-
-  public boolean hasPathThroughModule(
-    String moduleFrom,
-    String moduleTo,
-    Maps maps
-  ) {
-    return getTransitiveForwardDepsOfModule(moduleFrom, maps)
-      .flatMap(x -> x.getDepsWithExtraDepsJavaCompile(maps))
-      .anyMatch(x -> x.module().equals(moduleTo));
-  }
-
-  public Stream<JavaCompile> getTransitiveForwardDepsOfModule(
-    String fromModule,
-    Maps maps
-  ) {
-    var seen = new HashSet<Path>();
-    return maps.modulesByPath
-      .get(fromModule)
-      .targets.stream()
-      .flatMap(x -> x.getDepsWithExtraDepsJavaCompile(maps))
-      .filter(x -> x.module().equals(path))
-      .filter(x -> seen.add(x.jsonPath()))
-      .flatMap(x -> x.getDepsWithExtraDepsDeepSameModule(maps, seen));
-  }
-
-  public Stream<JavaCompile> getTransitiveReverseDepsOnModule(
-    String toModule,
-    Maps maps
-  ) {
-    var seen = new HashSet<Path>();
-    return targets
-      .stream()
-      .filter(x -> seen.add(x.jsonPath()))
-      .filter(x -> x.hasDirectDependencyOnModule(toModule, maps))
-      .flatMap(x -> x.getReverseDepsWithExtraDepsDeepSameModule(maps, seen));
-  }
 }
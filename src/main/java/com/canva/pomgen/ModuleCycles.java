@@ -0,0 +1,270 @@
+// Copyright 2023 Canva Inc. All Rights Reserved.
+
+package com.canva.pomgen;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.IntStream;
+
+/**
+ * The cycles between modules, which Maven doesn't allow.
+ * <p>
+ * The strongly connected components of the module graph are found with Tarjan's algorithm,
+ * which is linear in the size of the graph. Every module in a component with more than one
+ * module is in a cycle. For reporting, the elementary cycles within each component can be
+ * enumerated with Johnson's algorithm, up to a limit since there can be exponentially many.
+ * <p>
+ * Both are iterative so deep graphs can't overflow the stack. Modules are numbered in order
+ * of path so the results don't depend on hash order.
+ */
+final class ModuleCycles {
+
+  private final String[] modules;
+  /**
+   * The edges between modules, in compressed sparse row form: the modules that module i
+   * depends on are edges[offsets[i]] until edges[offsets[i + 1]].
+   */
+  private final int[] offsets;
+  private final int[] edges;
+  /**
+   * The component of each module, or -1 if it isn't in a cycle.
+   */
+  private final int[] componentOf;
+  private final List<int[]> components = new ArrayList<>();
+
+  ModuleCycles(Maps maps) {
+    var graph = maps.getGraph();
+    modules = IntStream
+      .range(0, graph.numModules())
+      .mapToObj(x -> graph.getModule(x))
+      .sorted()
+      .toArray(String[]::new);
+    var ids = new int[graph.numModules()];
+    for (var i = 0; i < modules.length; i++) {
+      ids[graph.getModuleId(modules[i])] = i;
+    }
+
+    var deps = new BitSet[modules.length];
+    Arrays.setAll(deps, x -> new BitSet());
+    for (var target = 0; target < graph.numTargets(); target++) {
+      var from = ids[graph.getTargetModule(target)];
+      graph
+        .getDepIds(target)
+        .map(x -> ids[graph.getTargetModule(x)])
+        .filter(x -> x != from)
+        .forEach(x -> deps[from].set(x));
+    }
+    offsets = new int[modules.length + 1];
+    for (var i = 0; i < modules.length; i++) {
+      offsets[i + 1] = offsets[i] + deps[i].cardinality();
+    }
+    edges = new int[offsets[modules.length]];
+    for (var i = 0; i < modules.length; i++) {
+      var j = offsets[i];
+      for (var dep = deps[i].nextSetBit(0); dep != -1; dep = deps[i].nextSetBit(dep + 1)) {
+        edges[j++] = dep;
+      }
+    }
+
+    componentOf = new int[modules.length];
+    Arrays.fill(componentOf, -1);
+    for (var component : findComponents(offsets, edges)) {
+      if (component.length > 1) {
+        Arrays.sort(component);
+        for (var x : component) {
+          componentOf[x] = components.size();
+        }
+        components.add(component);
+      }
+    }
+    components.sort(Comparator.comparingInt(x -> x[0]));
+  }
+
+  /**
+   * The strongly connected components of a graph in compressed sparse row form, each one
+   * after every component it has an edge to.
+   * <p>
+   * Tarjan's algorithm, with an explicit stack of (node, next edge) in place of recursion.
+   */
+  static List<int[]> findComponents(int[] offsets, int[] edges) {
+    var result = new ArrayList<int[]>();
+    var n = offsets.length - 1;
+    var index = new int[n];
+    var lowLink = new int[n];
+    Arrays.fill(index, -1);
+    var onStack = new boolean[n];
+    var stack = new int[n];
+    var stackSize = 0;
+    var callStack = new int[n];
+    var nextEdge = new int[n];
+    var nextIndex = 0;
+
+    for (var root = 0; root < n; root++) {
+      if (index[root] != -1) {
+        continue;
+      }
+      var depth = 0;
+      callStack[depth] = root;
+      nextEdge[depth] = offsets[root];
+      index[root] = lowLink[root] = nextIndex++;
+      stack[stackSize++] = root;
+      onStack[root] = true;
+
+      while (depth >= 0) {
+        var v = callStack[depth];
+        if (nextEdge[depth] < offsets[v + 1]) {
+          var w = edges[nextEdge[depth]++];
+          if (index[w] == -1) {
+            depth++;
+            callStack[depth] = w;
+            nextEdge[depth] = offsets[w];
+            index[w] = lowLink[w] = nextIndex++;
+            stack[stackSize++] = w;
+            onStack[w] = true;
+          } else if (onStack[w]) {
+            lowLink[v] = Math.min(lowLink[v], index[w]);
+          }
+          continue;
+        }
+
+        if (lowLink[v] == index[v]) {
+          var start = stackSize;
+          do {
+            start--;
+          } while (stack[start] != v);
+          var component = Arrays.copyOfRange(stack, start, stackSize);
+          for (var x : component) {
+            onStack[x] = false;
+          }
+          stackSize = start;
+          result.add(component);
+        }
+        depth--;
+        if (depth >= 0) {
+          var parent = callStack[depth];
+          lowLink[parent] = Math.min(lowLink[parent], lowLink[v]);
+        }
+      }
+    }
+    return result;
+  }
+
+  /**
+   * The modules in a cycle, grouped by strongly connected component.
+   */
+  public List<List<String>> getComponents() {
+    return components.stream().map(x -> toPaths(x, x.length)).toList();
+  }
+
+  public List<String> getModulesInCycles() {
+    return components
+      .stream()
+      .flatMapToInt(x -> Arrays.stream(x))
+      .sorted()
+      .mapToObj(x -> modules[x])
+      .toList();
+  }
+
+  private List<String> toPaths(int[] ids, int length) {
+    return Arrays.stream(ids, 0, length).mapToObj(x -> modules[x]).toList();
+  }
+
+  /**
+   * Up to limit elementary cycles, each starting from its module with the lowest path.
+   * <p>
+   * This is Johnson's algorithm run within each component: for each module s in order, find
+   * the cycles through s among the modules of its component that come after s, blocking
+   * modules that can't currently lead back to s so no path is explored twice.
+   */
+  public List<List<String>> findElementaryCycles(int limit) {
+    var result = new ArrayList<List<String>>();
+    var n = modules.length;
+    var blocked = new boolean[n];
+    var blockedBy = new BitSet[n];
+    var path = new int[n];
+    var nextEdge = new int[n];
+    var found = new boolean[n];
+
+    for (var component : components) {
+      for (var x : component) {
+        blockedBy[x] = new BitSet();
+      }
+      for (var s : component) {
+        if (result.size() >= limit) {
+          return result;
+        }
+        var c = componentOf[s];
+        for (var x : component) {
+          blocked[x] = false;
+          blockedBy[x].clear();
+        }
+
+        var depth = 0;
+        path[0] = s;
+        nextEdge[0] = offsets[s];
+        found[0] = false;
+        blocked[s] = true;
+
+        while (depth >= 0) {
+          var v = path[depth];
+          if (nextEdge[depth] < offsets[v + 1]) {
+            var w = edges[nextEdge[depth]++];
+            if (componentOf[w] != c || w < s) {
+              continue;
+            }
+            if (w == s) {
+              result.add(toPaths(path, depth + 1));
+              found[depth] = true;
+              if (result.size() >= limit) {
+                return result;
+              }
+            } else if (!blocked[w]) {
+              depth++;
+              path[depth] = w;
+              nextEdge[depth] = offsets[w];
+              found[depth] = false;
+              blocked[w] = true;
+            }
+            continue;
+          }
+
+          if (found[depth]) {
+            unblock(v, blocked, blockedBy);
+          } else {
+            for (var i = offsets[v]; i < offsets[v + 1]; i++) {
+              var w = edges[i];
+              if (componentOf[w] == c && w >= s) {
+                blockedBy[w].set(v);
+              }
+            }
+          }
+          depth--;
+          if (depth >= 0 && found[depth + 1]) {
+            found[depth] = true;
+          }
+        }
+      }
+    }
+    return result;
+  }
+
+  private static void unblock(int module, boolean[] blocked, BitSet[] blockedBy) {
+    var queue = new ArrayDeque<Integer>();
+    queue.add(module);
+    while (!queue.isEmpty()) {
+      var u = queue.poll();
+      blocked[u] = false;
+      var waiting = blockedBy[u];
+      for (var w = waiting.nextSetBit(0); w != -1; w = waiting.nextSetBit(w + 1)) {
+        if (blocked[w]) {
+          queue.add(w);
+        }
+      }
+      waiting.clear();
+    }
+  }
+}
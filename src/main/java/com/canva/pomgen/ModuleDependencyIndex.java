@@ -0,0 +1,55 @@
+// Copyright 2023 Canva Inc. All Rights Reserved.
+
+package com.canva.pomgen;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The dependencies and repositories of each module we are writing a pom.xml for, computed in
+ * one pass over each module's targets, so the sections of the pom.xml don't each work them
+ * out again from the dependency graph.
+ */
+final class ModuleDependencyIndex {
+
+  /**
+   * @param repositories the Maven repositories of the dependencies, most used first
+   * @param dependencies with coordinates and scopes resolved, and the jars of system
+   *                     imports
+   */
+  record ModuleDependencies(
+    List<String> repositories,
+    List<MavenPomDependency> dependencies
+  ) {}
+
+  private final Map<String, ModuleDependencies> modules = new ConcurrentHashMap<>();
+
+  /**
+   * Modules are indexed in parallel, since Maps and its graph are only read.
+   */
+  ModuleDependencyIndex(Maps maps, Collection<MavenModule> modules) {
+    var graph = maps.getGraph();
+    modules
+      .parallelStream()
+      .forEach(module -> {
+        var deps = module.getDepMasks(graph);
+        this.modules.put(
+          module.path,
+          new ModuleDependencies(
+            module.getMavenRepositories(maps, deps),
+            module.dependencies(maps, module.getDepsOnMavenCoords(maps, deps))
+          )
+        );
+      });
+  }
+
+  public ModuleDependencies get(MavenModule module) {
+    var result = modules.get(module.path);
+    if (result == null) {
+      throw new IllegalArgumentException("Module not indexed: " + module.path);
+    }
+    return result;
+  }
+}
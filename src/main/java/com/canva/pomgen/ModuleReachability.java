@@ -0,0 +1,201 @@
+// Copyright 2023 Canva Inc. All Rights Reserved.
+
+package com.canva.pomgen;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Function;
+import java.util.stream.IntStream;
+
+/**
+ * For each module in a cycle, which of its targets are reached from each module before it in
+ * a cycle and which reach each module after it, so the cycle report can explain every step
+ * of a cycle without traversing targets again for each one.
+ * <p>
+ * A cycle a -> b -> c only really passes through b if a target of a depends on a target of b
+ * that (through targets in b) depends on a target of c. Otherwise the cycle only exists
+ * because those targets were merged into the same module, and the targets of b on either
+ * side of it are what would need to be moved apart.
+ * <p>
+ * Only neighbours within the same strongly connected component are indexed, since those
+ * are the only ones a cycle can go through.
+ */
+@SuppressWarnings("Convert2MethodRef")
+final class ModuleReachability {
+
+  private record Pair(String from, String to) {}
+
+  private static final class Via {
+
+    /**
+     * The targets of this module reached from each module depending on it, in the order a
+     * depth first search from that module's targets finds them.
+     */
+    final Map<String, int[]> reachedFrom = new HashMap<>();
+    /**
+     * The targets of this module reaching each module it depends on, in the order a depth
+     * first search back from the targets with a direct dependency on it finds them.
+     */
+    final Map<String, int[]> reaching = new HashMap<>();
+    final Set<Pair> paths = new HashSet<>();
+  }
+
+  private final Maps maps;
+  private final DependencyGraph graph;
+  private final Map<String, Via> vias = new HashMap<>();
+
+  ModuleReachability(Maps maps, ModuleCycles cycles) {
+    this.maps = maps;
+    graph = maps.getGraph();
+    for (var component : cycles.getComponents()) {
+      var members = new HashSet<>(component);
+      for (var module : component) {
+        vias.put(module, index(maps.modulesByPath.get(module), members));
+      }
+    }
+  }
+
+  private Via index(MavenModule module, Set<String> members) {
+    var result = new Via();
+    var moduleId = graph.getModuleId(module.path);
+    var targets = getTargetIds(module.path).toArray();
+
+    var modulesFrom = new LinkedHashSet<String>();
+    var exits = new HashMap<String, List<Integer>>();
+    for (var target : targets) {
+      graph
+        .getReverseDepIds(target)
+        .mapToObj(x -> graph.getModule(graph.getTargetModule(x)))
+        .filter(x -> members.contains(x) && !x.equals(module.path))
+        .forEach(x -> modulesFrom.add(x));
+      graph
+        .getDepIds(target)
+        .mapToObj(x -> graph.getModule(graph.getTargetModule(x)))
+        .filter(x -> members.contains(x) && !x.equals(module.path))
+        .distinct()
+        .forEach(x ->
+          exits.computeIfAbsent(x, i -> new ArrayList<>()).add(target)
+        );
+    }
+
+    var exitSets = new HashMap<String, BitSet>();
+    exits.forEach((to, starts) -> {
+      var exitSet = new BitSet();
+      starts.forEach(x -> exitSet.set(x));
+      exitSets.put(to, exitSet);
+      result.reaching.put(
+        to,
+        search(starts.stream().mapToInt(x -> x), moduleId, false)
+      );
+    });
+
+    for (var from : modulesFrom) {
+      var entries = getTargetIds(from)
+        .flatMap(x -> graph.getDepIds(x))
+        .filter(x -> graph.getTargetModule(x) == moduleId);
+      var reached = search(entries, moduleId, true);
+      result.reachedFrom.put(from, reached);
+
+      var reachedSet = new BitSet();
+      for (var x : reached) {
+        reachedSet.set(x);
+      }
+      exitSets.forEach((to, exitSet) -> {
+        if (reachedSet.intersects(exitSet)) {
+          result.paths.add(new Pair(from, to));
+        }
+      });
+    }
+    return result;
+  }
+
+  private IntStream getTargetIds(String module) {
+    return maps.modulesByPath
+      .get(module)
+      .targets.stream()
+      .mapToInt(x -> graph.getTargetId(x));
+  }
+
+  /**
+   * Depth first search within the module from the given targets, following either
+   * dependencies or reverse dependencies, returning the targets in pre-order.
+   */
+  private int[] search(IntStream starts, int moduleId, boolean forward) {
+    var result = new ArrayList<Integer>();
+    var seen = new BitSet();
+    var stack = new ArrayList<int[]>();
+    var positions = new ArrayList<Integer>();
+    starts.forEach(start -> {
+      if (seen.get(start)) {
+        return;
+      }
+      seen.set(start);
+      result.add(start);
+      stack.add(next(start, forward));
+      positions.add(0);
+      while (!stack.isEmpty()) {
+        var top = stack.size() - 1;
+        var edges = stack.get(top);
+        var position = positions.get(top);
+        if (position == edges.length) {
+          stack.remove(top);
+          positions.remove(top);
+          continue;
+        }
+        positions.set(top, position + 1);
+        var x = edges[position];
+        if (graph.getTargetModule(x) == moduleId && !seen.get(x)) {
+          seen.set(x);
+          result.add(x);
+          stack.add(next(x, forward));
+          positions.add(0);
+        }
+      }
+    });
+    return result.stream().mapToInt(x -> x).toArray();
+  }
+
+  private int[] next(int target, boolean forward) {
+    return (forward ? graph.getDepIds(target) : graph.getReverseDepIds(target)).toArray();
+  }
+
+  /**
+   * Whether a target of from reaches a target of to through targets of via.
+   */
+  public boolean hasPathThrough(String from, String via, String to) {
+    var index = vias.get(via);
+    return index != null && index.paths.contains(new Pair(from, to));
+  }
+
+  /**
+   * The targets of via reached from the targets of from.
+   */
+  public List<JavaCompile> getReachedFrom(String from, String via) {
+    return getTargets(via, x -> x.reachedFrom.get(from));
+  }
+
+  /**
+   * The targets of via reaching the targets of to.
+   */
+  public List<JavaCompile> getReaching(String via, String to) {
+    return getTargets(via, x -> x.reaching.get(to));
+  }
+
+  private List<JavaCompile> getTargets(
+    String via,
+    Function<Via, int[]> getIds
+  ) {
+    var index = vias.get(via);
+    var ids = index == null ? null : getIds.apply(index);
+    if (ids == null) {
+      return List.of();
+    }
+    return IntStream.of(ids).mapToObj(x -> graph.getTarget(x)).toList();
+  }
+}
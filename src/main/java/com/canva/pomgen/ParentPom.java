@@ -0,0 +1,168 @@
+// Copyright 2023 Canva Inc. All Rights Reserved.
+
+package com.canva.pomgen;
+
+import java.nio.file.Path;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Objects;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.stream.Collectors;
+
+/**
+ * What the root pom.xml holds for the modules when it is also their parent: the plugin
+ * configuration that is the same for every module, the properties every module agrees on, the
+ * repositories of all of them and the version of each third party dependency, so each module
+ * pom.xml only has what is its own.
+ * <p>
+ * Anything from the previous root pom.xml that the modules in scope no longer need is kept,
+ * since the modules outside of the scope may still need it. Its properties and managed
+ * versions are kept as they are, because those modules left out everything with the same
+ * value as the parent. Only a full run drops what no module needs any more.
+ *
+ * @param repositories        most used first
+ * @param managedDependencies the third party dependencies with the only version any module
+ *                            depends on, in the dependencyManagement section with their
+ *                            exclusions so the modules don't need to repeat them
+ */
+@SuppressWarnings("Convert2MethodRef")
+record ParentPom(
+  List<String> repositories,
+  Map<String, String> properties,
+  Set<MavenCoordinate> managedDependencies
+) {
+  public static final MavenCoordinate COORDINATE = new MavenCoordinate(
+    "bazel.generated",
+    "canva",
+    "pom",
+    null,
+    "1.0-SNAPSHOT"
+  );
+
+  /**
+   * @param previous what was read from the previous root pom.xml, or null if there was none
+   */
+  static ParentPom of(
+    Collection<MavenModule> modules,
+    ModuleDependencyIndex dependencyIndex,
+    ParentPom previous
+  ) {
+    var repositories = modules
+      .stream()
+      .flatMap(x -> dependencyIndex.get(x).repositories().stream())
+      // Put the repos used by the most modules first
+      .collect(Collectors.groupingBy(x -> x, Collectors.counting()))
+      .entrySet()
+      .stream()
+      .sorted(
+        Entry
+          .<String, Long>comparingByValue()
+          .reversed()
+          .thenComparing(Entry.comparingByKey())
+      )
+      .map(x -> x.getKey())
+      .collect(Collectors.toCollection(() -> new LinkedHashSet<>()));
+    if (previous != null) {
+      repositories.addAll(previous.repositories());
+    }
+
+    Map<String, String> properties = null;
+    if (previous != null) {
+      // The modules outside of the scope rely on these, the modules in scope that differ
+      // have their own values
+      properties = previous.properties();
+    } else {
+      for (var module : modules) {
+        if (properties == null) {
+          properties = new TreeMap<>(module.properties());
+        } else {
+          var moduleProperties = module.properties();
+          properties
+            .entrySet()
+            .removeIf(x ->
+              !Objects.equals(moduleProperties.get(x.getKey()), x.getValue())
+            );
+        }
+      }
+    }
+
+    // A dependency can only be managed if every module agrees on its version, or if the
+    // previous root pom.xml managed it. The modules outside of the scope may have left out
+    // that version, so it stays, and the modules in scope with another version write theirs.
+    var versions = modules
+      .stream()
+      .flatMap(x -> dependencyIndex.get(x).dependencies().stream())
+      .filter(x -> isThirdParty(x))
+      .map(x -> x.coordinate())
+      .distinct()
+      .collect(Collectors.groupingBy(x -> withoutVersion(x)));
+    if (previous != null) {
+      for (var coordinate : previous.managedDependencies()) {
+        versions.put(withoutVersion(coordinate), List.of(coordinate));
+      }
+    }
+    var managedDependencies = versions
+      .values()
+      .stream()
+      .filter(x -> x.size() == 1)
+      .map(x -> x.get(0))
+      .sorted(
+        Comparator
+          .comparing((MavenCoordinate x) -> x.groupId())
+          .thenComparing(x -> x.artifactId())
+          .thenComparing(x -> x.packaging())
+          .thenComparing(x -> x.classifier(), Comparator.nullsFirst(Comparator.naturalOrder()))
+      )
+      .collect(Collectors.toCollection(() -> new LinkedHashSet<>()));
+
+    return new ParentPom(
+      List.copyOf(repositories),
+      properties == null ? Map.of() : properties,
+      managedDependencies
+    );
+  }
+
+  /**
+   * Whether the dependency is on a Maven artifact rather than another module or a jar in the
+   * workspace.
+   */
+  public static boolean isThirdParty(MavenPomDependency dependency) {
+    return (
+      dependency.systemPath() == null &&
+      !dependency.coordinate().groupId().equals(COORDINATE.groupId())
+    );
+  }
+
+  /**
+   * How Maven matches a dependency to its dependencyManagement entry.
+   */
+  private static MavenCoordinate withoutVersion(MavenCoordinate coordinate) {
+    return new MavenCoordinate(
+      coordinate.groupId(),
+      coordinate.artifactId(),
+      coordinate.packaging(),
+      coordinate.classifier(),
+      null
+    );
+  }
+
+  /**
+   * Whether the module pom.xml can leave the version and exclusions of the dependency to the
+   * dependencyManagement section.
+   */
+  public boolean manages(MavenPomDependency dependency) {
+    return isThirdParty(dependency) && managedDependencies.contains(dependency.coordinate());
+  }
+
+  /**
+   * The path of the parent pom.xml relative to the directory of a module.
+   */
+  public static String relativePath(MavenModule module) {
+    return "../".repeat(Path.of(module.path).getNameCount()) + "pom.xml";
+  }
+}
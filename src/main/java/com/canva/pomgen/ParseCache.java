@@ -0,0 +1,228 @@
+// Copyright 2023 Canva Inc. All Rights Reserved.
+
+package com.canva.pomgen;
+
+import static com.canva.pomgen.JsonTargetInfo.warning;
+import static com.canva.pomgen.Main.toAbsolutePath;
+
+import com.canva.pomgen.JsonTargetInfo.AndPath;
+import com.canva.pomgen.Main.InvalidPathException;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HexFormat;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * On-disk cache of parsed *-maven-info.json files, so targets that haven't changed since the
+ * last run don't need their .json re-read or their source files re-opened to find their Java
+ * package.
+ * <p>
+ * Entries are keyed by .json path. An entry is reused as is if the file's size and mtime are
+ * unchanged, and otherwise if its content digest is unchanged. The resolved SourcePath of each
+ * source file is cached separately against that source file's mtime.
+ */
+@SuppressWarnings("Convert2MethodRef")
+final class ParseCache {
+
+  /**
+   * Bump this whenever the format of the cache or the result of parsing changes.
+   */
+  private static final int VERSION = 4;
+
+  public static final boolean ENABLED = !Boolean.parseBoolean(
+    System.getenv("CANVA_POMGEN_DISABLE_PARSE_CACHE")
+  );
+
+  record CachedSource(long lastModified, SourcePath path, String error) {}
+
+  record Entry(
+    long size,
+    long lastModified,
+    String digest,
+    JsonTargetInfo json,
+    Map<String, CachedSource> srcs
+  ) {}
+
+  record CacheFile(
+    int version,
+    boolean singleModule,
+    Map<String, Entry> entries
+  ) {}
+
+  private final Path file;
+  private final Map<String, Entry> previous;
+  private final Map<String, Entry> current = new ConcurrentHashMap<>();
+
+  private ParseCache(Path file, Map<String, Entry> previous) {
+    this.file = file;
+    this.previous = previous;
+  }
+
+  /**
+   * A cache that always reads and parses from scratch and is never saved.
+   */
+  public static ParseCache disabled() {
+    return new ParseCache(null, Map.of());
+  }
+
+  public static ParseCache load(Path file) {
+    if (!ENABLED) {
+      return disabled();
+    }
+    try {
+      var cacheFile = Main.mapper.readValue(file.toFile(), CacheFile.class);
+      if (
+        cacheFile.version() == VERSION &&
+        cacheFile.singleModule() == Main.USE_SINGLE_MODULE
+      ) {
+        return new ParseCache(file, cacheFile.entries());
+      }
+    } catch (NoSuchFileException | FileNotFoundException e) {
+      // First run, nothing cached yet
+    } catch (IOException e) {
+      warning("Ignoring unreadable parse cache %s (%s)".formatted(file, e));
+    }
+    return new ParseCache(file, Map.of());
+  }
+
+  public AndPath read(Path path) {
+    if (file == null) {
+      return JsonTargetInfo.read(path);
+    }
+    try {
+      var key = path.toString();
+      BasicFileAttributes attributes;
+      try {
+        attributes = Files.readAttributes(path, BasicFileAttributes.class);
+      } catch (NoSuchFileException e) {
+        // Let the uncached path report the missing file the usual way
+        return JsonTargetInfo.read(path);
+      }
+      var size = attributes.size();
+      var lastModified = attributes.lastModifiedTime().toMillis();
+
+      var entry = previous.get(key);
+      if (
+        entry == null ||
+        entry.size() != size ||
+        entry.lastModified() != lastModified
+      ) {
+        var bytes = Files.readAllBytes(path);
+        var digest = digest(bytes);
+        if (entry != null && entry.digest().equals(digest)) {
+          entry =
+            new Entry(size, lastModified, digest, entry.json(), entry.srcs());
+        } else {
+          var json = JsonTargetInfoReader.decode(bytes, 0, bytes.length);
+          entry = new Entry(size, lastModified, digest, json, Map.of());
+        }
+      }
+
+      current.put(
+        key,
+        new Entry(
+          entry.size(),
+          entry.lastModified(),
+          entry.digest(),
+          entry.json(),
+          new ConcurrentHashMap<>(entry.srcs())
+        )
+      );
+      return new AndPath(entry.json(), path);
+    } catch (IOException e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  public AbstractParsedTarget parse(AndPath target) {
+    var entry = current.get(target.path().toString());
+    if (entry == null) {
+      return target.json().parse(target.path());
+    }
+    return target
+      .json()
+      .parse(target.path(), path -> parseJavaPath(entry.srcs(), path));
+  }
+
+  private static SourcePath parseJavaPath(
+    Map<String, CachedSource> srcs,
+    String path
+  ) throws InvalidPathException {
+    long lastModified;
+    try {
+      lastModified =
+        Files.getLastModifiedTime(toAbsolutePath(path)).toMillis();
+    } catch (IOException e) {
+      // Let the uncached path report the error
+      return Main.parseJavaPath(path);
+    }
+
+    var cached = srcs.get(path);
+    if (cached == null || cached.lastModified() != lastModified) {
+      try {
+        cached = new CachedSource(lastModified, Main.parseJavaPath(path), null);
+      } catch (InvalidPathException e) {
+        cached = new CachedSource(lastModified, null, e.getMessage());
+      }
+      srcs.put(path, cached);
+    }
+
+    if (cached.error() != null) {
+      throw new InvalidPathException(cached.error());
+    }
+    return cached.path();
+  }
+
+  /**
+   * Write the entries used by this run, replacing the previous cache file. Unless keepUnused
+   * is true the entries of the previous cache that weren't used by this run are dropped,
+   * which only makes sense if this run read every target.
+   */
+  public void save(boolean keepUnused) {
+    if (file == null) {
+      return;
+    }
+    if (keepUnused) {
+      previous.forEach((k, v) -> current.putIfAbsent(k, v));
+    }
+    try {
+      Files.createDirectories(file.getParent());
+      var temp = Files.createTempFile(file.getParent(), "parse-cache-", ".tmp");
+      try {
+        Main.mapper.writeValue(
+          temp.toFile(),
+          new CacheFile(VERSION, Main.USE_SINGLE_MODULE, current)
+        );
+        Files.move(
+          temp,
+          file,
+          StandardCopyOption.REPLACE_EXISTING,
+          StandardCopyOption.ATOMIC_MOVE
+        );
+      } finally {
+        Files.deleteIfExists(temp);
+      }
+    } catch (IOException e) {
+      warning("Failed to write parse cache %s (%s)".formatted(file, e));
+    }
+  }
+
+  private static String digest(byte[] bytes) {
+    try {
+      return HexFormat
+        .of()
+        .formatHex(MessageDigest.getInstance("SHA-256").digest(bytes));
+    } catch (NoSuchAlgorithmException e) {
+      throw new RuntimeException(e);
+    }
+  }
+}
@@ -2,9 +2,28 @@
 
 package com.canva.pomgen;
 
+import java.util.EnumSet;
+
 public enum Scope {
   MainCompile,
   MainRuntime,
   TestCompile,
-  TestRuntime,
+  TestRuntime;
+
+  /**
+   * This scope as a bit in a byte mask, for storing sets of scopes compactly.
+   */
+  public byte mask() {
+    return (byte) (1 << ordinal());
+  }
+
+  public static EnumSet<Scope> fromMask(int mask) {
+    var result = EnumSet.noneOf(Scope.class);
+    for (var scope : values()) {
+      if ((mask & scope.mask()) != 0) {
+        result.add(scope);
+      }
+    }
+    return result;
+  }
 }
@@ -4,6 +4,8 @@ package com.canva.pomgen;
 
 import static com.canva.pomgen.Main.toAbsolutePath;
 
+import com.fasterxml.jackson.annotation.JsonIgnore;
+
 import java.nio.file.Path;
 
 public record SourceRoot(String prefix, String moduleRoot, String sourceRoot) {
@@ -14,6 +16,7 @@ public record SourceRoot(String prefix, String moduleRoot, String sourceRoot) {
     sourceRoot = sourceRoot.intern();
   }
 
+  @JsonIgnore
   public Path getSourceRootPathFromModuleRoot() {
     if (moduleRoot.isEmpty()) {
       return toAbsolutePath(prefix + sourceRoot);
@@ -0,0 +1,215 @@
+// Copyright 2023 Canva Inc. All Rights Reserved.
+
+package com.canva.pomgen;
+
+import static com.canva.pomgen.JsonTargetInfo.warning;
+import static com.canva.pomgen.Main.toAbsolutePath;
+
+import com.canva.pomgen.JsonTargetInfo.AndPath;
+
+import java.io.FileNotFoundException;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Reads the *-maven-info.json files of a set of root targets and everything they reference
+ * through otherInfos, and parses them into AbstractParsedTargets.
+ * <p>
+ * Every file is read and then parsed on its own virtual thread as soon as it is discovered,
+ * and the resulting futures are memoized by path so each file is only read once no matter how
+ * many roots reach it. Roots can be added while Bazel is still building, so reading and
+ * parsing overlap with the build. Roots whose closure contains a missing file are skipped
+ * with a warning, any other error fails the whole load.
+ */
+@SuppressWarnings("Convert2MethodRef")
+final class TargetLoader implements AutoCloseable {
+
+  /**
+   * Limits how many files we have open at once, since there can be many thousands of
+   * virtual threads wanting to read a file at the same time.
+   */
+  private static final int MAX_CONCURRENT_IO = Math.max(
+    64,
+    Runtime.getRuntime().availableProcessors() * 4
+  );
+
+  private final ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor();
+  private final Semaphore ioPermits = new Semaphore(MAX_CONCURRENT_IO);
+  private final ParseCache cache;
+  private final Map<Path, Future<AndPath>> reads = new ConcurrentHashMap<>();
+  private final Map<Path, Future<AbstractParsedTarget>> parses = new ConcurrentHashMap<>();
+  private final Map<BazelLabel, Path> roots = new LinkedHashMap<>();
+
+  /**
+   * The result of previous calls to load(), and the roots they covered.
+   */
+  private final Map<Path, AndPath> loaded = new LinkedHashMap<>();
+  private final Set<BazelLabel> rootsDone = new HashSet<>();
+
+  TargetLoader(ParseCache cache) {
+    this.cache = cache;
+  }
+
+  /**
+   * Start reading the .json file for the given target, and all the .json files it references.
+   */
+  public void addRoot(BazelLabel label, Path jsonPath) {
+    if (roots.putIfAbsent(label, jsonPath) == null) {
+      read(jsonPath);
+    }
+  }
+
+  public boolean hasRoot(BazelLabel label) {
+    return roots.containsKey(label);
+  }
+
+  public int getNumRoots() {
+    return roots.size();
+  }
+
+  public Set<Path> getRootPaths() {
+    return new HashSet<>(roots.values());
+  }
+
+  /**
+   * The label of each root, by .json path.
+   */
+  public Map<Path, BazelLabel> getRootLabels() {
+    var result = new HashMap<Path, BazelLabel>();
+    roots.forEach((k, v) -> result.put(v, k));
+    return result;
+  }
+
+  /**
+   * The .json files of the targets returned by load(), by path.
+   */
+  public Map<Path, JsonTargetInfo> getJsonInfos() {
+    var result = new HashMap<Path, JsonTargetInfo>();
+    loaded.forEach((k, v) -> result.put(k, v.json()));
+    return result;
+  }
+
+  private Future<AndPath> read(Path path) {
+    return reads.computeIfAbsent(
+      path,
+      p ->
+        executor.submit(() -> {
+          var target = withIoPermit(() -> cache.read(p));
+          for (var other : target.json().otherInfos()) {
+            read(toAbsolutePath(other));
+          }
+          parses.put(
+            p,
+            executor.submit(() -> withIoPermit(() -> cache.parse(target)))
+          );
+          return target;
+        })
+    );
+  }
+
+  /**
+   * Wait for all reads and parses to finish and return every target reachable from a root
+   * that could be loaded completely. The result is sorted by .json path. This can be called
+   * again after adding more roots, and only the new roots are waited for.
+   */
+  public List<AbstractParsedTarget> load() {
+    for (var root : roots.entrySet()) {
+      if (!rootsDone.add(root.getKey())) {
+        continue;
+      }
+      try {
+        for (var target : closure(root.getValue(), loaded.keySet())) {
+          loaded.put(target.path(), target);
+        }
+      } catch (RuntimeException e) {
+        if (e.getCause() instanceof FileNotFoundException) {
+          warning(
+            "Skipping target %s (%s)".formatted(root.getKey(), e.getMessage())
+          );
+        } else {
+          throw e;
+        }
+      }
+    }
+
+    var result = new ArrayList<AbstractParsedTarget>(loaded.size());
+    for (var path : loaded.keySet()) {
+      result.add(join(parses.get(path)));
+    }
+    result.sort(Comparator.comparing(x -> x.getJsonPath()));
+    return result;
+  }
+
+  /**
+   * All the targets reachable from the given .json file, excluding those in done (whose own
+   * closures are already known to be complete). Even if our .json file exists we want to fail
+   * if any of our dependencies .json files can't be read.
+   */
+  private List<AndPath> closure(Path path, Set<Path> done) {
+    var result = new ArrayList<AndPath>();
+    if (done.contains(path)) {
+      return result;
+    }
+    var seen = new HashSet<Path>();
+    var stack = new ArrayDeque<Path>();
+    stack.push(path);
+    seen.add(path);
+    while (!stack.isEmpty()) {
+      var target = join(read(stack.pop()));
+      result.add(target);
+      var others = target.json().otherInfos();
+      for (var i = others.size() - 1; i >= 0; i--) {
+        var other = toAbsolutePath(others.get(i));
+        if (!done.contains(other) && seen.add(other)) {
+          stack.push(other);
+        }
+      }
+    }
+    return result;
+  }
+
+  private <T> T withIoPermit(Callable<T> callable) throws Exception {
+    ioPermits.acquire();
+    try {
+      return callable.call();
+    } finally {
+      ioPermits.release();
+    }
+  }
+
+  private static <T> T join(Future<T> future) {
+    try {
+      return future.get();
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof RuntimeException cause) {
+        throw cause;
+      } else if (e.getCause() instanceof Error cause) {
+        throw cause;
+      }
+      throw new RuntimeException(e.getCause());
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new RuntimeException(e);
+    }
+  }
+
+  @Override
+  public void close() {
+    executor.shutdownNow();
+  }
+}
@@ -0,0 +1,207 @@
+// Copyright 2023 Canva Inc. All Rights Reserved.
+
+package com.canva.pomgen;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.stream.Collectors;
+
+/**
+ * The Bazel target patterns to generate pom.xml files for, eg. "//services/billing/..." or
+ * "-//services/billing/legacy/...". With no patterns on the command line this is "//...", the
+ * whole workspace.
+ * <p>
+ * Recursive patterns also define which modules are being regenerated, a module is in scope
+ * if the last recursive pattern that overlaps its directory is a positive one that covers it.
+ * Patterns for single targets or other repositories don't affect the scope.
+ */
+final class TargetPatterns {
+
+  private static final String RECURSIVE_SUFFIX = "/...";
+
+  /**
+   * A normalized pattern, with recursivePackage set to the package it covers (eg.
+   * "services/billing", or "" for "//...") if it is a recursive pattern in the main repo.
+   */
+  record TargetPattern(
+    boolean negative,
+    String pattern,
+    String recursivePackage
+  ) {
+    @Override
+    public String toString() {
+      return (negative ? "-" : "") + pattern;
+    }
+  }
+
+  public static final TargetPatterns WHOLE_WORKSPACE = new TargetPatterns(
+    List.of(parse("//...", null))
+  );
+
+  private final List<TargetPattern> patterns;
+
+  private TargetPatterns(List<TargetPattern> patterns) {
+    this.patterns = patterns;
+  }
+
+  /**
+   * Parse the patterns given on the command line. Relative patterns are resolved against the
+   * package of the directory we were run from.
+   */
+  public static TargetPatterns parse(List<String> args) {
+    if (args.isEmpty()) {
+      return WHOLE_WORKSPACE;
+    }
+    var patterns = new ArrayList<TargetPattern>();
+    String workingPackage = null;
+    for (var arg : args) {
+      var pattern = arg.startsWith("-") ? arg.substring(1) : arg;
+      if (!pattern.startsWith("//") && !pattern.startsWith("@")) {
+        if (workingPackage == null) {
+          workingPackage = Main.getWorkingPackage();
+        }
+      }
+      patterns.add(parse(arg, workingPackage));
+    }
+    if (patterns.get(0).negative()) {
+      throw new IllegalArgumentException(
+        "The first target pattern must not be negative: " + args.get(0)
+      );
+    }
+    return new TargetPatterns(patterns);
+  }
+
+  private static TargetPattern parse(String arg, String workingPackage) {
+    var negative = arg.startsWith("-");
+    var pattern = negative ? arg.substring(1) : arg;
+
+    if (pattern.startsWith("@@//")) {
+      pattern = pattern.substring(2);
+    } else if (pattern.startsWith("@//")) {
+      pattern = pattern.substring(1);
+    } else if (pattern.startsWith(":")) {
+      pattern = "//" + workingPackage + pattern;
+    } else if (!pattern.startsWith("//") && !pattern.startsWith("@")) {
+      pattern =
+        "//" + (workingPackage.isEmpty() ? "" : workingPackage + "/") + pattern;
+    }
+
+    String recursivePackage = null;
+    if (pattern.startsWith("//")) {
+      var colon = pattern.indexOf(':');
+      var packagePart = colon == -1 ? pattern : pattern.substring(0, colon);
+      var targetPart = colon == -1 ? "all" : pattern.substring(colon + 1);
+      var isAllTargets = List.of("all", "*", "all-targets").contains(targetPart);
+      if (isAllTargets && packagePart.equals("//...")) {
+        recursivePackage = "";
+      } else if (isAllTargets && packagePart.endsWith(RECURSIVE_SUFFIX)) {
+        recursivePackage =
+          packagePart.substring(2, packagePart.length() - RECURSIVE_SUFFIX.length());
+      }
+    }
+    return new TargetPattern(negative, pattern, recursivePackage);
+  }
+
+  /**
+   * Patterns covering the whole of each of the given modules.
+   */
+  public static TargetPatterns ofModules(Collection<String> modulePaths) {
+    return new TargetPatterns(
+      modulePaths
+        .stream()
+        .map(x -> parse(x.isEmpty() ? "//..." : "//" + x + RECURSIVE_SUFFIX, null))
+        .toList()
+    );
+  }
+
+  /**
+   * Patterns for the targets directly in each of the given packages.
+   */
+  public static TargetPatterns ofPackages(Collection<String> packages) {
+    return new TargetPatterns(
+      packages.stream().map(x -> parse("//" + x + ":all", null)).toList()
+    );
+  }
+
+  /**
+   * These patterns followed by the other patterns.
+   */
+  public TargetPatterns plus(TargetPatterns other) {
+    var result = new ArrayList<>(patterns);
+    result.addAll(other.patterns);
+    return new TargetPatterns(result);
+  }
+
+  public boolean isWholeWorkspace() {
+    var result = false;
+    for (var pattern : patterns) {
+      if ("".equals(pattern.recursivePackage())) {
+        result = !pattern.negative();
+      } else if (pattern.negative()) {
+        result = false;
+      }
+    }
+    return result;
+  }
+
+  /**
+   * Whether everything in the module with the given path is matched by these patterns.
+   */
+  public boolean containsModule(String path) {
+    var result = false;
+    for (var pattern : patterns) {
+      var recursivePackage = pattern.recursivePackage();
+      if (recursivePackage == null) {
+        continue;
+      }
+      if (!pattern.negative() && isInPackage(path, recursivePackage)) {
+        result = true;
+      } else if (
+        pattern.negative() &&
+        (isInPackage(path, recursivePackage) || isInPackage(recursivePackage, path))
+      ) {
+        result = false;
+      }
+    }
+    return result;
+  }
+
+  private static boolean isInPackage(String path, String packagePath) {
+    return (
+      packagePath.isEmpty() ||
+      path.equals(packagePath) ||
+      path.startsWith(packagePath + "/")
+    );
+  }
+
+  /**
+   * The patterns as a query expression, eg. "//a/... + //b/... - //b/c/...".
+   */
+  public String toQueryExpression() {
+    var result = new StringBuilder();
+    for (var pattern : patterns) {
+      if (!result.isEmpty()) {
+        result.append(pattern.negative() ? " - " : " + ");
+      }
+      result.append(pattern.pattern());
+    }
+    return result.toString();
+  }
+
+  /**
+   * The patterns one per line, for "bazel build --target_pattern_file". Unlike on the command
+   * line, negative patterns there can't be mistaken for options.
+   */
+  public List<String> toTargetPatternFileLines() {
+    return patterns.stream().map(x -> x.toString()).toList();
+  }
+
+  @Override
+  public String toString() {
+    return patterns
+      .stream()
+      .map(x -> x.toString())
+      .collect(Collectors.joining(" "));
+  }
+}
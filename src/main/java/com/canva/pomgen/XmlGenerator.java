@@ -5,57 +5,61 @@ package com.canva.pomgen;
 import static com.canva.pomgen.Main.workspaceDir;
 
 import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.io.Writer;
 import java.nio.charset.StandardCharsets;
-import java.nio.file.Files;
 import java.nio.file.Path;
 import java.util.Arrays;
 import java.util.Comparator;
+import java.util.List;
 import java.util.Map;
+import java.util.stream.Collectors;
 import java.util.stream.Stream;
-import javax.xml.parsers.DocumentBuilderFactory;
-import javax.xml.parsers.ParserConfigurationException;
-import javax.xml.transform.OutputKeys;
-import javax.xml.transform.TransformerException;
-import javax.xml.transform.TransformerFactory;
-import javax.xml.transform.dom.DOMSource;
-import javax.xml.transform.stream.StreamResult;
-import org.w3c.dom.Document;
-import org.w3c.dom.Element;
 
+/**
+ * Builds pom.xml files as a small tree of elements and writes them out directly, with the same
+ * bytes the JAXP Transformer used to produce: an XML declaration, 2 space indentation, empty
+ * elements as &lt;tag/&gt; and the xsi namespace of the project element named ns0.
+ */
 class XmlGenerator {
 
-  public final Document document;
+  /**
+   * An element with either text or child elements.
+   */
+  public record Element(String tag, String text, List<Element> children) {}
 
   public static final String namespace = "http://maven.apache.org/POM/4.0.0";
   public static final String schemaLocation =
     "http://maven.apache.org/xsd/maven-4.0.0.xsd";
-  private static final DocumentBuilderFactory documentBuilderFactory = DocumentBuilderFactory.newInstance();
-  private static final TransformerFactory transformerFactory = TransformerFactory.newInstance();
 
-  {
-    try {
-      document = documentBuilderFactory.newDocumentBuilder().newDocument();
-      document.setXmlVersion("1.0");
-    } catch (ParserConfigurationException e) {
-      throw new RuntimeException(e);
-    }
-  }
+  private static final String DECLARATION =
+    "<?xml version=\"1.0\" encoding=\"UTF-8\" standalone=\"no\"?>";
+  private static final String PROJECT_START_TAG =
+    "<project xmlns:ns0=\"http://www.w3.org/2001/XMLSchema-instance\" " +
+    "ns0:schemaLocation=\"" +
+    namespace +
+    " " +
+    schemaLocation +
+    "\" xmlns=\"" +
+    namespace +
+    "\">";
+  private static final String LINE_SEPARATOR = System.lineSeparator();
+
+  /**
+   * Reused by each rendering thread, since most pom.xml files are about the same size.
+   */
+  private static final ThreadLocal<StringBuilder> buffers = ThreadLocal.withInitial(() ->
+    new StringBuilder(16 * 1024)
+  );
+
+  private Element project;
 
   public Element element(String tag, String text) {
-    var element = document.createElementNS(namespace, tag);
-    element.setTextContent(text);
-    return element;
+    return new Element(tag, text == null ? "" : text, List.of());
   }
 
   public Element element(String tag, Stream<Element> children) {
-    var element = document.createElementNS(namespace, tag);
-    children.forEach(child -> {
-      if (child != null) {
-        element.appendChild(child);
-      }
-    });
-    return element;
+    return new Element(tag, "", children.filter(x -> x != null).toList());
   }
 
   public Element element(String tag, Element... children) {
@@ -63,162 +67,108 @@ class XmlGenerator {
   }
 
   public void createProject(MavenCoordinate coordinate, Element... children) {
-    var element = element("project");
-    element.setAttributeNS( //
-      "http://www.w3.org/2001/XMLSchema-instance",
-      "schemaLocation",
-      namespace + " " + schemaLocation
+    createProjectWithParent(coordinate, null, children);
+  }
+
+  /**
+   * @param parent the parent element, or null if there is no parent
+   */
+  private void createProjectWithParent(
+    MavenCoordinate coordinate,
+    Element parent,
+    Element... children
+  ) {
+    project =
+      element(
+        "project",
+        Stream.concat(
+          Stream.of(
+            element("modelVersion", "4.0.0"),
+            parent,
+            element("groupId", coordinate.groupId()),
+            element("artifactId", coordinate.artifactId()),
+            element("version", coordinate.version()),
+            element("packaging", coordinate.packaging())
+          ),
+          Arrays.stream(children)
+        )
+      );
+  }
+
+  /**
+   * The root pom.xml, which is also the parent of the modules.
+   */
+  public void createParentProject(ParentPom parent, Stream<String> modulePaths) {
+    createProject(
+      ParentPom.COORDINATE,
+      element("modules", modulePaths.map(x -> element("module", x))),
+      repositories(parent.repositories().stream()),
+      properties(parent.properties()),
+      parent.managedDependencies().isEmpty()
+        ? null
+        : element(
+          "dependencyManagement",
+          element(
+            "dependencies",
+            parent.managedDependencies().stream().map(x -> managedDependency(x))
+          )
+        ),
+      element(
+        "build",
+        element("pluginManagement", plugins(true, null, null, null))
+      )
     );
-    element.appendChild(element("modelVersion", "4.0.0"));
-    element.appendChild(element("groupId", coordinate.groupId()));
-    element.appendChild(element("artifactId", coordinate.artifactId()));
-    element.appendChild(element("version", coordinate.version()));
-    element.appendChild(element("packaging", coordinate.packaging()));
-    for (var child : children) {
-      element.appendChild(child);
-    }
-    document.appendChild(element);
   }
 
-  public void createProject(MavenModule data, Maps maps) {
+  /**
+   * @param parent what the module inherits from the root pom.xml, or null if it is standalone
+   */
+  public void createProject(
+    MavenModule data,
+    ModuleDependencyIndex.ModuleDependencies deps,
+    ParentPom parent
+  ) {
     var sourceDirs = data.sourceDirectories().sorted().toList();
     var testSourceDirs = data.testSourceDirectories().sorted().toList();
     var resourceDirs = data.resourceDirectories().sorted().toList();
     var testResourceDirs = data.testResourceDirectories().sorted().toList();
-    createProject(
-      data.coordinate,
-      element(
-        "repositories",
-        data
-          .getMavenRepositories(maps)
-          .stream()
-          .map(x ->
-            element(
-              "repository",
-              element("id", x.replaceAll("\\W+", "-")),
-              element("url", x),
-              element(
-                "releases",
-                element("enabled", "true"),
-                element("updatePolicy", "never")
-              ),
-              element(
-                "snapshots",
-                element("enabled", "false"),
-                element("updatePolicy", "never")
-              )
-            )
-          )
-      ),
-      element(
-        "properties",
-        data
-          .properties()
+    var properties = data.properties();
+    var repositories = deps.repositories();
+    if (parent != null) {
+      properties =
+        properties
           .entrySet()
           .stream()
-          .sorted(Map.Entry.comparingByKey())
-          .map(x -> element(x.getKey(), x.getValue()))
-      ),
+          .filter(x -> !x.getValue().equals(parent.properties().get(x.getKey())))
+          .collect(Collectors.toMap(x -> x.getKey(), x -> x.getValue()));
+      repositories =
+        repositories
+          .stream()
+          .filter(x -> !parent.repositories().contains(x))
+          .toList();
+    }
+    createProjectWithParent(
+      data.coordinate,
+      parent == null
+        ? null
+        : element(
+          "parent",
+          element("groupId", ParentPom.COORDINATE.groupId()),
+          element("artifactId", ParentPom.COORDINATE.artifactId()),
+          element("version", ParentPom.COORDINATE.version()),
+          element("relativePath", ParentPom.relativePath(data))
+        ),
+      parent == null || !repositories.isEmpty()
+        ? repositories(repositories.stream())
+        : null,
+      parent == null || !properties.isEmpty() ? properties(properties) : null,
       element(
         "build",
         element(
           "directory",
-          workspaceDir + "/maven_build/" + data.pathPrefix + "target"
-        ),
-        element(
-          "plugins",
-          element(
-            "plugin",
-            element("groupId", "org.apache.maven.plugins"),
-            element("artifactId", "maven-resources-plugin"),
-            // Old version to work around https://issues.apache.org/jira/browse/MRESOURCES-237
-            element("version", "2.7")
-          ),
-          element(
-            "plugin",
-            element("groupId", "org.apache.maven.plugins"),
-            element("artifactId", "maven-compiler-plugin"),
-            element("version", "3.10.1"),
-            element(
-              "executions",
-              element(
-                "execution",
-                element("id", "default-compile"),
-                element("phase", "compile"),
-                element("goals", element("goal", "compile")),
-                element(
-                  "configuration",
-                  element(
-                    "compilerArgs",
-                    data
-                      .mainCompilerConfig()
-                      .compilerArgs()
-                      .stream()
-                      .map(x -> element("arg", x))
-                  )
-                )
-              ),
-              element(
-                "execution",
-                element("id", "default-testCompile"),
-                element("phase", "test-compile"),
-                element("goals", element("goal", "testCompile")),
-                element(
-                  "configuration",
-                  element(
-                    "compilerArgs",
-                    data
-                      .testCompilerConfig()
-                      .compilerArgs()
-                      .stream()
-                      .map(x -> element("arg", x))
-                  )
-                )
-              )
-            )
-          ),
-          element(
-            "plugin",
-            element("groupId", "org.codehaus.mojo"),
-            element("artifactId", "build-helper-maven-plugin"),
-            element("version", "3.3" + ".0"),
-            element(
-              "executions",
-              element(
-                "execution",
-                element("id", "add-source"),
-                element("phase", "generate-sources"),
-                element("goals", element("goal", "add-source")),
-                element(
-                  "configuration",
-                  element(
-                    "sources",
-                    sourceDirs
-                      .stream()
-                      .skip(1)
-                      .map(x -> element("source", x.toString()))
-                  )
-                )
-              ),
-              element(
-                "execution",
-                element("id", "add-test-source"),
-                element("phase", "generate-test-sources"),
-                element("goals", element("goal", "add-test-source")),
-                element(
-                  "configuration",
-                  element(
-                    "sources",
-                    testSourceDirs
-                      .stream()
-                      .skip(1)
-                      .map(x -> element("source", x.toString()))
-                  )
-                )
-              )
-            )
-          )
+          workspaceDir() + "/maven_build/" + data.pathPrefix + "target"
         ),
+        plugins(parent == null, data, sourceDirs, testSourceDirs),
         element(
           "sourceDirectory",
           sourceDirs
@@ -264,70 +214,335 @@ class XmlGenerator {
       ),
       element(
         "dependencies",
-        data
-          .dependencies(maps)
+        deps
+          .dependencies()
           .stream()
           .sorted(
             Comparator
               .comparing((MavenPomDependency x) -> x.coordinate().groupId())
               .thenComparing(x -> x.coordinate().artifactId())
           )
-          .map(x ->
-            element(
-              "dependency",
-              element("groupId", x.coordinate().groupId()),
-              element("artifactId", x.coordinate().artifactId()),
-              element("version", x.coordinate().version()),
-              element("type", x.coordinate().packaging()),
-              element("scope", x.getMavenScope()),
-              element("optional", Boolean.toString(x.optional())),
-              x.coordinate().classifier() != null
-                ? element("classifier", x.coordinate().classifier())
-                : null,
-              x.systemPath() != null
-                ? element("systemPath", x.systemPath().toString())
-                : null,
-              MavenArtifact.USE_BAZEL_DEPENDENCY_RESOLUTION &&
-                  !x.coordinate().groupId().equals("bazel.generated")
-                ? element(
-                  "exclusions",
-                  element(
-                    "exclusion",
-                    element("groupId", "*"),
-                    element("artifactId", "*")
-                  )
-                )
-                : null
-            )
+          .map(x -> dependency(x, parent != null && parent.manages(x)))
+      )
+    );
+  }
+
+  /**
+   * @param managed whether the version and exclusions come from the dependencyManagement
+   *                section of the parent, so they and any defaults can be left out
+   */
+  private Element dependency(MavenPomDependency x, boolean managed) {
+    return element(
+      "dependency",
+      element("groupId", x.coordinate().groupId()),
+      element("artifactId", x.coordinate().artifactId()),
+      managed ? null : element("version", x.coordinate().version()),
+      managed && x.coordinate().packaging().equals("jar")
+        ? null
+        : element("type", x.coordinate().packaging()),
+      element("scope", x.getMavenScope()),
+      managed && !x.optional()
+        ? null
+        : element("optional", Boolean.toString(x.optional())),
+      x.coordinate().classifier() != null
+        ? element("classifier", x.coordinate().classifier())
+        : null,
+      x.systemPath() != null
+        ? element("systemPath", x.systemPath().toString())
+        : null,
+      !managed &&
+        MavenArtifact.USE_BAZEL_DEPENDENCY_RESOLUTION &&
+        !x.coordinate().groupId().equals("bazel.generated")
+        ? exclusions()
+        : null
+    );
+  }
+
+  private Element managedDependency(MavenCoordinate x) {
+    return element(
+      "dependency",
+      element("groupId", x.groupId()),
+      element("artifactId", x.artifactId()),
+      element("version", x.version()),
+      element("type", x.packaging()),
+      x.classifier() != null ? element("classifier", x.classifier()) : null,
+      MavenArtifact.USE_BAZEL_DEPENDENCY_RESOLUTION ? exclusions() : null
+    );
+  }
+
+  /**
+   * Excludes all transitive dependencies, so Maven leaves dependency resolution to Bazel.
+   */
+  private Element exclusions() {
+    return element(
+      "exclusions",
+      element(
+        "exclusion",
+        element("groupId", "*"),
+        element("artifactId", "*")
+      )
+    );
+  }
+
+  private Element repositories(Stream<String> urls) {
+    return element(
+      "repositories",
+      urls.map(x ->
+        element(
+          "repository",
+          element("id", x.replaceAll("\\W+", "-")),
+          element("url", x),
+          element(
+            "releases",
+            element("enabled", "true"),
+            element("updatePolicy", "never")
+          ),
+          element(
+            "snapshots",
+            element("enabled", "false"),
+            element("updatePolicy", "never")
           )
+        )
       )
     );
   }
 
-  public void write(Path path) {
-    System.err.println("Writing " + workspaceDir.relativize(path));
-    try (var writer = Files.newBufferedWriter(path)) {
-      write(writer);
-    } catch (IOException e) {
-      throw new RuntimeException(e);
+  private Element properties(Map<String, String> properties) {
+    return element(
+      "properties",
+      properties
+        .entrySet()
+        .stream()
+        .sorted(Map.Entry.comparingByKey())
+        .map(x -> element(x.getKey(), x.getValue()))
+    );
+  }
+
+  /**
+   * The build plugins. With lifecycle, their versions and the phases and goals of their
+   * executions, which are the same for every module. With a module, the configuration of
+   * their executions for that module. A module with a parent only gets the plugins it has
+   * configuration for, or null if there are none.
+   */
+  private Element plugins(
+    boolean lifecycle,
+    MavenModule data,
+    List<Path> sourceDirs,
+    List<Path> testSourceDirs
+  ) {
+    var mainCompilerArgs = data == null
+      ? List.<String>of()
+      : data.mainCompilerConfig().compilerArgs();
+    var testCompilerArgs = data == null
+      ? List.<String>of()
+      : data.testCompilerConfig().compilerArgs();
+    var hasCompilerArgs = !mainCompilerArgs.isEmpty() || !testCompilerArgs.isEmpty();
+    var hasExtraSources = data != null &&
+      (sourceDirs.size() > 1 || testSourceDirs.size() > 1);
+    if (!lifecycle && !hasCompilerArgs && !hasExtraSources) {
+      return null;
     }
+    return element(
+      "plugins",
+      lifecycle
+        ? element(
+          "plugin",
+          element("groupId", "org.apache.maven.plugins"),
+          element("artifactId", "maven-resources-plugin"),
+          // Old version to work around https://issues.apache.org/jira/browse/MRESOURCES-237
+          element("version", "2.7")
+        )
+        : null,
+      lifecycle || hasCompilerArgs
+        ? element(
+          "plugin",
+          element("groupId", "org.apache.maven.plugins"),
+          element("artifactId", "maven-compiler-plugin"),
+          lifecycle ? element("version", "3.10.1") : null,
+          element(
+            "executions",
+            execution(
+              lifecycle,
+              "default-compile",
+              "compile",
+              "compile",
+              data == null
+                ? null
+                : element(
+                  "compilerArgs",
+                  mainCompilerArgs.stream().map(x -> element("arg", x))
+                )
+            ),
+            execution(
+              lifecycle,
+              "default-testCompile",
+              "test-compile",
+              "testCompile",
+              data == null
+                ? null
+                : element(
+                  "compilerArgs",
+                  testCompilerArgs.stream().map(x -> element("arg", x))
+                )
+            )
+          )
+        )
+        : null,
+      lifecycle || hasExtraSources
+        ? element(
+          "plugin",
+          element("groupId", "org.codehaus.mojo"),
+          element("artifactId", "build-helper-maven-plugin"),
+          lifecycle ? element("version", "3.3" + ".0") : null,
+          element(
+            "executions",
+            execution(
+              lifecycle,
+              "add-source",
+              "generate-sources",
+              "add-source",
+              data == null
+                ? null
+                : element(
+                  "sources",
+                  sourceDirs
+                    .stream()
+                    .skip(1)
+                    .map(x -> element("source", x.toString()))
+                )
+            ),
+            execution(
+              lifecycle,
+              "add-test-source",
+              "generate-test-sources",
+              "add-test-source",
+              data == null
+                ? null
+                : element(
+                  "sources",
+                  testSourceDirs
+                    .stream()
+                    .skip(1)
+                    .map(x -> element("source", x.toString()))
+                )
+            )
+          )
+        )
+        : null
+    );
+  }
+
+  /**
+   * @param configuration the configuration of the execution, or null if there is none
+   */
+  private Element execution(
+    boolean lifecycle,
+    String id,
+    String phase,
+    String goal,
+    Element configuration
+  ) {
+    return element(
+      "execution",
+      element("id", id),
+      lifecycle ? element("phase", phase) : null,
+      lifecycle ? element("goals", element("goal", goal)) : null,
+      configuration == null ? null : element("configuration", configuration)
+    );
+  }
+
+  public byte[] toBytes() {
+    var buffer = render();
+    var bytes = buffer.toString().getBytes(StandardCharsets.UTF_8);
+    buffer.setLength(0);
+    return bytes;
   }
 
   public void write(Writer writer) {
+    var buffer = render();
     try {
-      var transformer = transformerFactory.newTransformer();
-      transformer.setOutputProperty(
-        OutputKeys.ENCODING,
-        StandardCharsets.UTF_8.name()
-      );
-      transformer.setOutputProperty(OutputKeys.INDENT, "yes");
-      transformer.setOutputProperty(
-        "{http://xml.apache.org/xslt}indent-amount",
-        "2"
-      );
-      transformer.transform(new DOMSource(document), new StreamResult(writer));
-    } catch (TransformerException e) {
-      throw new RuntimeException(e);
+      writer.append(buffer);
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    } finally {
+      buffer.setLength(0);
+    }
+  }
+
+  private StringBuilder render() {
+    if (project == null) {
+      throw new IllegalStateException("No project was created");
+    }
+    var buffer = buffers.get();
+    buffer.setLength(0);
+    buffer.append(DECLARATION).append(LINE_SEPARATOR);
+    writeElement(buffer, project, 0);
+    buffer.append(LINE_SEPARATOR);
+    return buffer;
+  }
+
+  private static void writeElement(StringBuilder out, Element element, int depth) {
+    if (depth == 0) {
+      out.append(PROJECT_START_TAG);
+    } else if (element.text().isEmpty() && element.children().isEmpty()) {
+      // Same as the Transformer, which collapses empty elements
+      out.append('<').append(element.tag()).append("/>");
+      return;
+    } else {
+      out.append('<').append(element.tag()).append('>');
+    }
+    if (!element.text().isEmpty()) {
+      appendEscaped(out, element.tag(), element.text());
+    } else {
+      for (var child : element.children()) {
+        indent(out, depth + 1);
+        writeElement(out, child, depth + 1);
+      }
+      indent(out, depth);
+    }
+    out.append("</").append(element.tag()).append('>');
+  }
+
+  private static void indent(StringBuilder out, int depth) {
+    out.append(LINE_SEPARATOR).repeat(' ', depth * 2);
+  }
+
+  private static void appendEscaped(StringBuilder out, String tag, String text) {
+    for (var i = 0; i < text.length(); i++) {
+      var c = text.charAt(i);
+      switch (c) {
+        case '&' -> out.append("&amp;");
+        case '<' -> out.append("&lt;");
+        case '>' -> out.append("&gt;");
+        case '\r' -> out.append("&#13;");
+        case '\n' -> out.append(LINE_SEPARATOR);
+        case '\t' -> out.append(c);
+        default -> {
+          if (
+            Character.isHighSurrogate(c) &&
+            i + 1 < text.length() &&
+            Character.isLowSurrogate(text.charAt(i + 1))
+          ) {
+            // The Transformer writes characters outside the BMP as character references
+            out.append("&#").append(text.codePointAt(i)).append(';');
+            i++;
+          } else if (c >= 0x7f && c <= 0x9f) {
+            // And the C1 controls (and DEL) as well
+            out.append("&#").append((int) c).append(';');
+          } else if (
+            c < 0x20 || Character.isSurrogate(c) || c == 0xfffe || c == 0xffff
+          ) {
+            throw new IllegalArgumentException(
+              "Invalid XML character (Unicode: 0x%x) in <%s>".formatted(
+                  (int) c,
+                  tag
+                )
+            );
+          } else {
+            out.append(c);
+          }
+        }
+      }
     }
   }
 }
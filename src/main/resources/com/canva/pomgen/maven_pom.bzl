@@ -2,9 +2,21 @@
 Aspect for gathering information from java_* targets to use for generating pom.xml files.
 """
 
+load(":config.bzl", "COMPACT_OUTPUT", "EMIT_JAR_MANIFESTS", "SKIP_MAVEN_REPOSITORIES")
+
 _MAVEN_COORDINATES_PREFIX = "maven_coordinates="
 _MAVEN_URL_PREFIX = "maven_url="
 
+# Kinds of top-level targets we generate pom.xml files for. The aspect still runs on
+# everything these depend on, but only these kinds provide the "pom_info" output group, so
+# building the aspect over "//..." only builds the .json files we actually want.
+_TOP_LEVEL_KINDS = [
+    "java_binary",
+    "java_library",
+    "java_test",
+    "java_plugin",
+]
+
 def _get_maven_coordinates(ctx):
     for tag in ctx.rule.attr.tags:
         if tag.startswith(_MAVEN_COORDINATES_PREFIX):
@@ -38,29 +50,73 @@ def _collect_deps(attr):
 
     return dep_list
 
-def _get_java_infos_jars(java_infos):
-    return depset([], transitive = [
-        set
-        for j in java_infos
-        for set in [
-            j.full_compile_jars,
-            j.compile_jars,
-            depset(j.runtime_output_jars),
-            depset(j.source_jars),
-        ]
-    ]).to_list()
-
-def _get_java_output_for_maven(java_infos):
-    return depset([], transitive = [
-        set
-        for j in java_infos
-        for set in [
-            j.full_compile_jars,
-            # j.compile_jars,
-            depset(j.runtime_output_jars),
-            # j.source_jars,
-        ]
-    ]).to_list()
+def _unique(files):
+    # A dict keeps insertion order, and unlike "f not in list" membership is constant time
+    return {f: None for f in files}.keys()
+
+def _to_list(files):
+    return files.to_list() if type(files) == "depset" else files
+
+def _get_own_jars(java_infos):
+    """The jars the targets produce themselves, without the jars of their exports."""
+    outputs = [o for j in java_infos for o in j.java_outputs]
+    return _unique(
+        [o.class_jar for o in outputs] +
+        [o.compile_jar for o in outputs if o.compile_jar] +
+        [f for o in outputs for f in _to_list(o.source_jars)],
+    )
+
+def _get_own_class_jars(java_infos):
+    return _unique([o.class_jar for j in java_infos for o in j.java_outputs])
+
+def _get_exported_jars(java_infos):
+    """The full compile jars of the targets and everything they export, transitively."""
+    return depset(transitive = [j.full_compile_jars for j in java_infos]).to_list()
+
+# The fields of the .json files that hold paths, which are shortened in compact output
+_PATH_FIELDS = [
+    "compileJars",
+    "exportJars",
+    "jars",
+    "manifestProtos",
+    "otherInfos",
+    "outputJars",
+    "pluginJars",
+    "resources",
+    "runtimeJars",
+    "srcs",
+]
+
+def _get_path_prefix(path):
+    """The root a path is under: bazel-out/<config>/bin/, an external repo or both."""
+    parts = path.split("/")
+    length = 0
+    if parts[0] == "bazel-out" and len(parts) > 3:
+        length = 3
+        if parts[3] == "external" and len(parts) > 5:
+            length = 5
+    elif parts[0] == "external" and len(parts) > 2:
+        length = 2
+    return "/".join(parts[:length]) + "/" if length else ""
+
+def _encode_compact(json_data):
+    """
+    Encode without indentation, and with each path written as "<index>:<rest>" where index is
+    into the pathPrefixes of the file. The same few long roots are repeated in most paths, so
+    this makes the files several times smaller. The Java side expands them again when reading.
+    """
+    prefixes = {}
+    compact = dict(json_data)
+    for field in _PATH_FIELDS:
+        paths = []
+        for path in json_data[field]:
+            prefix = _get_path_prefix(path)
+            if prefix not in prefixes:
+                prefixes[prefix] = len(prefixes)
+            paths.append("%d:%s" % (prefixes[prefix], path[len(prefix):]))
+        compact[field] = paths
+    compact["pathPrefixes"] = prefixes.keys()
+    return json.encode(compact)
 
 MavenPomInfo = provider(
     fields = [
@@ -89,6 +145,16 @@ def _is_excluded_label(label):
 
     return False
 
+def _is_pinned_label(label):
+    # In a maven_install repository whose lock file the Java side reads. With Bzlmod the
+    # repository name is canonical, like rules_jvm_external~~maven~maven, and ends in the
+    # name given to maven.install.
+    name = label.workspace_name
+    for repository in SKIP_MAVEN_REPOSITORIES:
+        if name == repository or name.endswith("~" + repository) or name.endswith("+" + repository):
+            return True
+    return False
+
 def _has_srcjars(ctx):
     for file in ctx.rule.files.srcs:
         if file.extension == "srcjar":
@@ -97,11 +163,24 @@ def _has_srcjars(ctx):
 
 def _maven_pom_aspect(target, ctx):
     kind = ctx.rule.kind
-
-    java_infos = _collect_deps([target])
-    output_jars = _get_java_infos_jars(java_infos)
     maven_coords = _get_maven_coordinates(ctx)
     maven_url = _get_maven_url(ctx)
+
+    if (
+        maven_coords != None and
+        maven_url != None and
+        _is_pinned_label(target.label)
+    ):
+        # Pinned in a lock file, which the Java side resolves these from instead. The aspect
+        # still visits the deps of this target, but they return here too without any actions.
+        return []
+
+    java_infos = _collect_deps([target])
+
+    # Only this target's own jars. The jars of its exports show up as outputs only in the
+    # targets that actually produce them, and Maven modules will be forced to depend directly
+    # on what we export instead of only on us.
+    output_jars = _get_own_jars(java_infos)
     testonly = ctx.rule.attr.testonly
 
     is_java_binary = kind == "java_binary"
@@ -127,12 +206,6 @@ def _maven_pom_aspect(target, ctx):
     runtime_deps = []
 
     exports = ctx.rule.attr.exports if is_java_library or is_java_import else []
-    exported_jars = _get_java_infos_jars(_collect_deps(exports))
-
-    # Remove output jars that come from exports, this way those jars show up as outputs only in
-    # the target that actually produces them, and Maven modules will be forced to depend directly
-    # on what we export instead of only on us.
-    output_jars = [f for f in output_jars if f not in exported_jars]
 
     if not output_jars:
         return []
@@ -143,6 +216,7 @@ def _maven_pom_aspect(target, ctx):
     plugins = []
     javacopts = []
     jars = []
+    manifest_protos = []
 
     if (
         is_any_compile and
@@ -155,10 +229,17 @@ def _maven_pom_aspect(target, ctx):
         plugins = ctx.rule.attr.plugins
         javacopts = ctx.rule.attr.javacopts
 
+        if EMIT_JAR_MANIFESTS:
+            # Lists the package of each source file, so the Java side doesn't have to read them
+            manifest_protos = [
+                o.manifest_proto
+                for j in java_infos
+                for o in j.java_outputs
+                if o.manifest_proto
+            ]
+
         # Unneeded as Maven has no analog and it is already included in the .full_compile_jars of deps
         # exports = ctx.rule.attr.exports if is_java_library or is_java_import else []
-        # Unneeded as Maven has no analog and it is already included in the .plugins of deps
-        # exported_plugins = ctx.rule.attr.exported_plugins if is_java_library else []
 
         # TODO
         # proguard_specs = ctx.rule.files.proguard_specs if is_java_library or is_java_plugin else []
@@ -169,10 +250,7 @@ def _maven_pom_aspect(target, ctx):
     else:
         # This could be a java_import or jvm_import or some other java_* rule outside our workspace
         # so to get the jars lets just grab them from the JavaInfo
-        jars = _get_java_output_for_maven(java_infos)
-
-        # Remove jars from exports
-        jars = [j for j in jars if j not in exported_jars]
+        jars = _get_own_class_jars(java_infos)
 
     dep_infos = _collect_deps(deps)
     runtime_dep_infos = _collect_deps(runtime_deps)
@@ -195,7 +273,7 @@ def _maven_pom_aspect(target, ctx):
         depset([t.file], transitive = t.deps)
         for t in other_maven_infos
     ] + [
-        depset(srcs + resources + jars),
+        depset(srcs + resources + jars + manifest_protos),
     ]
 
     source_files = [f for f in srcs if f.extension == "java"]
@@ -209,14 +287,26 @@ def _maven_pom_aspect(target, ctx):
         resources = list(resources)
         resources.extend(properties)
 
-    # TODO plugins from toolchain and --plugins?
-    all_plugin_data = [p.plugins for p in plugin_infos] + \
-                      [d.plugins for d in dep_infos]
+    # Each target only lists what it contributes directly, everything transitive is put back
+    # together on the Java side from the graph of .json files. In particular the jars of what a
+    # dependency exports aren't repeated for every target depending on it, they are listed
+    # once in the exportJars of the dependency. A dependency with no jars of its own has no
+    # .json file though, so the jars it exports have to be listed in its place.
+    compile_jars = []
+    plugin_classes = [
+        c
+        for p in plugin_infos
+        for c in p.plugins.processor_classes.to_list()
+    ]
+    for d in dep_infos:
+        own_class_jars = _get_own_class_jars([d])
+        compile_jars.extend(own_class_jars if own_class_jars else _get_exported_jars([d]))
 
     # This has to match the structure on the Java side
-    json_data = struct(
+    json_data = dict(
         label = str(target.label),
         kind = kind,
+        manifestProtos = [f.path for f in manifest_protos],
         mavenCoords = maven_coords,
         mavenUrl = maven_url,
         jars = [f.path for f in jars],
@@ -226,21 +316,13 @@ def _maven_pom_aspect(target, ctx):
             for d in runtime_dep_infos + dep_infos
             for f in d.runtime_output_jars
         ],
-        compileJars = [
-            f.path
-            for d in dep_infos
-            for f in d.full_compile_jars.to_list()
-        ],
-        pluginJars = [
-            j.path
-            for p in all_plugin_data
-            for j in p.processor_jars.to_list()
-        ],
-        pluginClasses = [
-            c
-            for p in all_plugin_data
-            for c in p.processor_classes.to_list()
-        ],
+        compileJars = [f.path for f in _unique(compile_jars)],
+        exportJars = [f.path for f in _get_exported_jars(_collect_deps(exports))],
+        # The plugins' own jars, their dependencies are in the .json files of the plugins
+        pluginJars = [f.path for f in _get_own_class_jars(_collect_deps(plugins))],
+        # Only the target's own plugins, the ones exported by its deps aren't listed
+        # TODO plugins exported by deps, from toolchain and --plugins?
+        pluginClasses = _unique(plugin_classes),
         # TODO copts from deps, toolchain and --javacopts?
         javaCopts = javacopts_expanded,
         srcs = [f.path for f in source_files],
@@ -256,11 +338,23 @@ def _maven_pom_aspect(target, ctx):
 
     file = ctx.actions.declare_file(ctx.rule.attr.name + "-maven-info.json")
 
-    ctx.actions.write(file, json.encode_indent(json_data, indent = "  ") + "\n")
+    if COMPACT_OUTPUT:
+        content = _encode_compact(json_data)
+    else:
+        content = json.encode_indent(json_data, indent = "  ")
+    ctx.actions.write(file, content + "\n")
+
+    if kind not in _TOP_LEVEL_KINDS:
+        return [MavenPomInfo(file = file, deps = depsets)]
 
     return [
         MavenPomInfo(file = file, deps = depsets),
-        OutputGroupInfo(pom_info = depset([file], transitive = depsets)),
+        OutputGroupInfo(
+            pom_info = depset([file], transitive = depsets),
+            # Just this target's own .json file, so its exact path can be found from the build
+            # events.
+            pom_info_file = depset([file]),
+        ),
     ]
 
 maven_pom_aspect = aspect(